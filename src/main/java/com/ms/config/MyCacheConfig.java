@@ -1,25 +1,45 @@
 package com.ms.config;
 
+import com.ms.utils.CacheCodec;
+import com.ms.utils.CacheCodecRedisSerializer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.cache.Cache;
+import org.springframework.cache.annotation.CachingConfigurerSupport;
 import org.springframework.cache.annotation.EnableCaching;
+import org.springframework.cache.interceptor.CacheErrorHandler;
+import org.springframework.cache.interceptor.SimpleCacheErrorHandler;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.cache.RedisCacheConfiguration;
-import org.springframework.data.redis.serializer.GenericJackson2JsonRedisSerializer;
 import org.springframework.data.redis.serializer.RedisSerializationContext;
 import org.springframework.data.redis.serializer.StringRedisSerializer;
 
+@Slf4j
 @Configuration
 @EnableCaching
-public class MyCacheConfig {
+public class MyCacheConfig extends CachingConfigurerSupport {
 
     @Bean
-    RedisCacheConfiguration redisCacheConfiguration(){
+    RedisCacheConfiguration redisCacheConfiguration(CacheCodec cacheCodec){
 
         RedisCacheConfiguration config = RedisCacheConfiguration.defaultCacheConfig();
 
         config = config.serializeKeysWith(RedisSerializationContext.SerializationPair.fromSerializer(new StringRedisSerializer()));
-        config = config.serializeValuesWith(RedisSerializationContext.SerializationPair.fromSerializer(new GenericJackson2JsonRedisSerializer()));
+        config = config.serializeValuesWith(RedisSerializationContext.SerializationPair.fromSerializer(new CacheCodecRedisSerializer(cacheCodec)));
 
         return config;
     }
+
+    /**
+     * 缓存读取失败（例如类结构变化后旧缓存无法解码）时按未命中处理，重新查询后覆盖
+     */
+    @Override
+    public CacheErrorHandler errorHandler() {
+        return new SimpleCacheErrorHandler() {
+            @Override
+            public void handleCacheGetError(RuntimeException exception, Cache cache, Object key) {
+                log.warn("读取缓存{}::{}失败，按未命中处理", cache.getName(), key, exception);
+            }
+        };
+    }
 }
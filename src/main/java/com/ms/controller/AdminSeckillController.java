@@ -0,0 +1,75 @@
+package com.ms.controller;
+
+
+import com.ms.dto.Result;
+import com.ms.dto.SeckillLimitDTO;
+import com.ms.service.IVoucherOrderService;
+import com.ms.service.IVoucherService;
+import org.springframework.web.bind.annotation.*;
+
+import javax.annotation.Resource;
+
+/**
+ * 秒杀的运维接口，只有admin.user-ids中的用户可以访问
+ */
+@RestController
+@RequestMapping("/admin/seckill")
+public class AdminSeckillController {
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private IVoucherService voucherService;
+
+    /**
+     * 查看死信队列中处理失败的订单消息
+     * @param count 最多返回的条数
+     * @return 死信列表，包含原消息内容和失败原因
+     */
+    @GetMapping("dlq")
+    public Result queryDeadLetters(@RequestParam(value = "count", defaultValue = "20") Integer count) {
+        return voucherOrderService.queryDeadLetters(count);
+    }
+
+    /**
+     * 把死信重新投递到订单队列
+     * @param id 死信的消息id
+     * @return 无
+     */
+    @PostMapping("dlq/{id}/replay")
+    public Result replayDeadLetter(@PathVariable("id") String id) {
+        return voucherOrderService.replayDeadLetter(id);
+    }
+
+    /**
+     * 补充秒杀券库存，同时清除各节点的售罄标记
+     * @param voucherId 优惠券id
+     * @param count 补充的数量
+     * @return 无
+     */
+    @PutMapping("{id}/stock")
+    public Result addSeckillStock(@PathVariable("id") Long voucherId, @RequestParam("count") Integer count) {
+        return voucherService.addSeckillStock(voucherId, count);
+    }
+
+    /**
+     * 调整秒杀券的限流配置，未传的字段保持不变
+     * @param voucherId 优惠券id
+     * @param limit 限流配置
+     * @return 无
+     */
+    @PutMapping("{id}/limit")
+    public Result updateSeckillLimit(@PathVariable("id") Long voucherId, @RequestBody SeckillLimitDTO limit) {
+        return voucherService.updateSeckillLimit(voucherId, limit);
+    }
+
+    /**
+     * 检查即将开始和进行中的秒杀券，redis被清空或更换后从数据库恢复库存和一人一单
+     * @return 恢复的券数
+     */
+    @PostMapping("rehydrate")
+    public Result rehydrateSeckill() {
+        return voucherService.rehydrateSeckill();
+    }
+}
@@ -3,11 +3,8 @@ package com.ms.controller;
 
 import com.ms.dto.Result;
 import com.ms.service.IVoucherOrderService;
-import org.springframework.web.bind.annotation.PathVariable;
-import org.springframework.web.bind.annotation.PostMapping;
-import org.springframework.web.bind.annotation.RequestMapping;
-
-import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.annotation.Resource;
 
@@ -24,7 +21,62 @@ public class VoucherOrderController {
     private IVoucherOrderService voucherOrderService;
 
     @PostMapping("seckill/{id}")
-    public Result seckillVoucher(@PathVariable("id") Long voucherId) {
-        return voucherOrderService.seckillVoucher(voucherId);
+    public Result seckillVoucher(@PathVariable("id") Long voucherId,
+                                 @RequestHeader(value = "seckill-token", required = false) String admissionToken) {
+        return voucherOrderService.seckillVoucher(voucherId, admissionToken);
+    }
+
+    /**
+     * 进入秒杀等候室排队
+     * @param voucherId 秒杀券id
+     * @return 排队位置，已放行时带有准入令牌
+     */
+    @PostMapping("seckill/{id}/queue")
+    public Result joinWaitingRoom(@PathVariable("id") Long voucherId) {
+        return voucherOrderService.joinWaitingRoom(voucherId);
+    }
+
+    /**
+     * 轮询排队位置
+     * @param voucherId 秒杀券id
+     * @return 排队位置，已放行时带有准入令牌
+     */
+    @GetMapping("seckill/{id}/queue")
+    public Result queryWaitingRoom(@PathVariable("id") Long voucherId) {
+        return voucherOrderService.queryWaitingRoom(voucherId);
+    }
+
+    /**
+     * 滚动查询自己的订单，按下单时间倒序
+     * @param max 上一页返回的minTime（最小的订单id），第一页不传
+     * @param count 每页条数
+     * @return 订单列表和下一页的起点
+     */
+    @GetMapping("of/me")
+    public Result queryMyOrders(@RequestParam(value = "max", required = false) Long max,
+                                @RequestParam(value = "count", defaultValue = "10") Integer count) {
+        return voucherOrderService.queryMyOrders(max, count);
+    }
+
+    /**
+     * 查询自己的订单，包括已归档的订单
+     * @param orderId 订单id
+     * @return 订单详情
+     */
+    @GetMapping("{id}")
+    public Result queryOrder(@PathVariable("id") Long orderId) {
+        return voucherOrderService.queryOrder(orderId);
+    }
+
+    /**
+     * 长轮询查询秒杀订单的处理结果，不占用请求线程
+     * @param orderId 下单返回的订单id
+     * @param timeout 最长等待秒数，超过配置的上限时按上限处理
+     * @return persisted 已落库，duplicate 重复下单，failed 处理失败，queued 等待超时仍在排队
+     */
+    @GetMapping("{id}/status")
+    public DeferredResult<Result> queryOrderStatus(@PathVariable("id") Long orderId,
+                                                   @RequestParam(value = "timeout", defaultValue = "10") Long timeout) {
+        return voucherOrderService.queryOrderStatus(orderId, timeout);
     }
 }
@@ -0,0 +1,23 @@
+package com.ms.dto;
+
+import lombok.Data;
+
+@Data
+public class SeckillLimitDTO {
+    /**
+     * 单个节点每秒放行的请求数，小于等于0表示不限制
+     */
+    private Integer localQps;
+    /**
+     * 单个节点允许的突发请求数
+     */
+    private Integer localBurst;
+    /**
+     * 单个用户在时间窗口内最多的请求数，小于等于0表示不限制
+     */
+    private Integer userLimit;
+    /**
+     * 用户限流的滑动窗口长度，毫秒
+     */
+    private Long userWindowMillis;
+}
@@ -0,0 +1,19 @@
+package com.ms.dto;
+
+import lombok.Data;
+
+@Data
+public class WaitingRoomDTO {
+    /**
+     * 前面还有多少人，0表示已放行
+     */
+    private Long position;
+    /**
+     * 放行后的准入令牌，下单时放在请求头seckill-token中
+     */
+    private String token;
+    /**
+     * 令牌过期时间
+     */
+    private Long expireAt;
+}
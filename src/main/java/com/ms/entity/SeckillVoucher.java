@@ -34,6 +34,21 @@ public class SeckillVoucher implements Serializable {
      */
     private Integer stock;
 
+    /**
+     * 秒杀库存在redis中的分片数，1表示不分片
+     */
+    private Integer stockShards;
+
+    /**
+     * 节点本地租用库存时每次租用的数量，0表示不租用
+     */
+    private Integer stockLeaseChunk;
+
+    /**
+     * 租用模式下一人一单的分区数
+     */
+    private Integer stockLeasePartitions;
+
     /**
      * 创建时间
      */
@@ -74,6 +74,24 @@ public class Voucher implements Serializable {
     @TableField(exist = false)
     private Integer stock;
 
+    /**
+     * 秒杀库存在redis中的分片数，为空或1表示不分片
+     */
+    @TableField(exist = false)
+    private Integer stockShards;
+
+    /**
+     * 节点本地租用库存时每次租用的数量，为空或0表示不租用，与分片不能同时使用
+     */
+    @TableField(exist = false)
+    private Integer stockLeaseChunk;
+
+    /**
+     * 等候室每秒放行的人数，为空或0表示不开启等候室
+     */
+    @TableField(exist = false)
+    private Integer waitingRoomRate;
+
     /**
      * 生效时间
      */
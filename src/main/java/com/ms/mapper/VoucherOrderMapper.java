@@ -1,7 +1,15 @@
 package com.ms.mapper;
 
 import com.ms.entity.VoucherOrder;
+import com.ms.utils.RedisIdWorker;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.cursor.Cursor;
+import org.springframework.jdbc.BadSqlGrammarException;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
 
 /**
  * @author: Omerta
@@ -9,4 +17,95 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
 
+    /**
+     * 多行插入订单 INSERT IGNORE INTO tb_voucher_order (...) VALUES (...),(...)
+     * 主键或(voucher_id, user_id)重复的行会被忽略
+     * @param orders 订单列表，不能为空
+     * @return 实际插入的行数
+     */
+    int insertIgnoreBatch(@Param("orders") List<VoucherOrder> orders);
+
+    /**
+     * 流式读取券的有效订单（未取消）的用户id，MySQL驱动逐行返回，不把结果集一次性读入内存
+     * 需要在事务中遍历
+     */
+    Cursor<Long> selectOrderedUserIds(@Param("voucherId") Long voucherId);
+
+    /**
+     * 已结束的订单按下单年份归档到冷表 tb_voucher_order_archive_{yyyy}
+     * 下单时间取自订单id，不需要先查询订单
+     */
+    String ARCHIVE_TABLE_PREFIX = "tb_voucher_order_archive_";
+
+    static String archiveTable(Long orderId) {
+        return ARCHIVE_TABLE_PREFIX + RedisIdWorker.timeOf(orderId).getYear();
+    }
+
+    /**
+     * 按id查询订单，先查热表，不在热表中再查所在年份的冷表
+     */
+    default VoucherOrder selectByIdWithArchive(Long orderId) {
+        VoucherOrder order = selectById(orderId);
+        if (order != null) {
+            return order;
+        }
+        try {
+            return selectArchivedById(archiveTable(orderId), orderId);
+        } catch (BadSqlGrammarException e) {
+            //这一年还没有归档过订单，冷表不存在
+            return null;
+        }
+    }
+
+    VoucherOrder selectArchivedById(@Param("table") String table, @Param("id") Long id);
+
+    /**
+     * 按(user_id, id)索引向前翻页：id小于max的最近limit个订单，不使用OFFSET
+     */
+    List<VoucherOrder> selectUserOrdersBefore(@Param("table") String table, @Param("userId") Long userId,
+                                              @Param("max") Long max, @Param("limit") int limit);
+
+    /**
+     * 可以归档的订单：已核销、已取消或已退款，最后更新早于cutoff，并且所属的秒杀已经结束
+     * @return 订单id，按更新时间排序
+     */
+    List<Long> selectArchivable(@Param("cutoff") LocalDateTime cutoff, @Param("now") LocalDateTime now,
+                                @Param("limit") int limit);
+
+    /**
+     * 已存在的冷表名，从information_schema中查询
+     */
+    List<String> selectArchiveTables();
+
+    /**
+     * CREATE TABLE IF NOT EXISTS ${table} LIKE tb_voucher_order
+     */
+    void createArchiveTable(@Param("table") String table);
+
+    /**
+     * 复制仍处于结束状态的订单到冷表，已复制过的忽略
+     */
+    int copyToArchive(@Param("table") String table, @Param("ids") Collection<Long> ids);
+
+    /**
+     * 删除热表中已经复制到冷表的订单
+     */
+    int deleteArchived(@Param("table") String table, @Param("ids") Collection<Long> ids);
+
+    /**
+     * 登记放弃的订单（转入死信队列或处理失败，不会再落库），已登记的忽略
+     * @param orders 订单列表，不能为空
+     * @param reason 放弃的原因，最多255个字符
+     */
+    int insertAbandoned(@Param("orders") Collection<VoucherOrder> orders, @Param("reason") String reason);
+
+    /**
+     * 其中已经放弃的订单id
+     */
+    List<Long> selectAbandonedIds(@Param("ids") Collection<Long> ids);
+
+    /**
+     * 重新投递放弃的订单前删除登记
+     */
+    int deleteAbandoned(@Param("id") Long id);
 }
@@ -3,9 +3,12 @@ package com.ms.service;
 import com.baomidou.mybatisplus.extension.service.IService;
 import com.ms.dto.LoginFormDTO;
 import com.ms.dto.Result;
+import com.ms.dto.UserDTO;
 import com.ms.entity.User;
 
 import javax.servlet.http.HttpSession;
+import java.util.Collection;
+import java.util.Map;
 
 /**
  * @author: Omerta
@@ -21,4 +24,10 @@ public interface IUserService extends IService<User> {
 
     Result signCount();
 
+    /**
+     * 批量查询用户的公开信息，走缓存
+     * @return 用户id -> 用户，按ids的顺序，不存在的用户不放入
+     */
+    Map<Long, UserDTO> queryUserDTOs(Collection<Long> ids);
+
 }
@@ -3,6 +3,10 @@ package com.ms.service;
 import com.ms.dto.Result;
 import com.ms.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.util.List;
+import java.util.Set;
 
 /**
  * @author: Omerta
@@ -12,7 +16,50 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
 
     Result seckillVoucher(Long voucherId);
 
+    /**
+     * 秒杀下单，开启等候室的券需要携带放行后拿到的准入令牌
+     */
+    Result seckillVoucher(Long voucherId, String admissionToken);
+
+    Result joinWaitingRoom(Long voucherId);
+
+    Result queryWaitingRoom(Long voucherId);
+
     void createVoucherOrder(VoucherOrder voucherOrder);
 
+    /**
+     * 批量落库，返回因一人一单被忽略的订单id
+     */
+    Set<Long> createVoucherOrders(List<VoucherOrder> voucherOrders);
+
+    /**
+     * 取消超时未支付的订单并归还数据库库存
+     * @return 订单是否由未支付变为已取消
+     */
+    boolean cancelUnpaidOrder(Long orderId, Long voucherId);
+
+    /**
+     * 把一批已结束的订单从热表移到冷表
+     * @return 移走的订单数
+     */
+    int archiveOrders(String table, List<Long> orderIds);
+
+    /**
+     * 查询当前用户的订单，热表中没有时查冷表
+     */
+    Result queryOrder(Long orderId);
+
+    /**
+     * 按id倒序翻页查询当前用户的订单
+     * @param max 上一页返回的最小订单id，第一页为null
+     */
+    Result queryMyOrders(Long max, Integer count);
+
+    Result queryDeadLetters(Integer count);
+
+    Result replayDeadLetter(String id);
+
+    DeferredResult<Result> queryOrderStatus(Long orderId, Long timeoutSeconds);
+
 
 }
@@ -1,6 +1,7 @@
 package com.ms.service;
 
 import com.ms.dto.Result;
+import com.ms.dto.SeckillLimitDTO;
 import com.ms.entity.Voucher;
 import com.baomidou.mybatisplus.extension.service.IService;
 
@@ -13,4 +14,10 @@ public interface IVoucherService extends IService<Voucher> {
     Result queryVoucherOfShop(Long shopId);
 
     void addSeckillVoucher(Voucher voucher);
+
+    Result addSeckillStock(Long voucherId, Integer count);
+
+    Result updateSeckillLimit(Long voucherId, SeckillLimitDTO limit);
+
+    Result rehydrateSeckill();
 }
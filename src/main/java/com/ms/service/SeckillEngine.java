@@ -0,0 +1,76 @@
+package com.ms.service;
+
+import com.ms.entity.SeckillVoucher;
+import com.ms.entity.VoucherOrder;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * 秒杀引擎：扣库存、一人一单、投递订单、消费订单
+ * 通过配置 seckill.engine 选择实现：
+ * redis（默认）：lua脚本 + redis stream，支持多节点部署；
+ * local：进程内的分段原子计数器 + 有界环形队列，用于单节点部署和不依赖redis的压测。
+ */
+public interface SeckillEngine {
+
+    int SUCCESS = 0;
+    int SOLD_OUT = 1;
+    int DUPLICATE = 2;
+    int NOT_STARTED = 3;
+    int ENDED = 4;
+    int NOT_LOADED = 5;
+    int BUSY = 6;
+
+    /**
+     * 加载秒杀券的库存和时间窗口，已加载的券不覆盖库存
+     * @param beginMillis 开始时间（毫秒时间戳）
+     * @param endMillis 结束时间（毫秒时间戳）
+     */
+    void load(Long voucherId, int stock, long beginMillis, long endMillis);
+
+    /**
+     * 由数据库中保存的分片、租用配置写入存储，预热时在isLoaded、restoreOrders和load之前调用，
+     * 存储被清空或更换后按原来的配置恢复
+     */
+    void loadConfig(SeckillVoucher seckillVoucher);
+
+    /**
+     * 券的库存是否已经加载
+     */
+    boolean isLoaded(Long voucherId);
+
+    /**
+     * 恢复一批已下单的用户，在load之前调用，用于存储被清空或更换后由数据库中的订单重建一人一单
+     */
+    void restoreOrders(Long voucherId, List<Long> userIds);
+
+    /**
+     * 活动结束后卸载秒杀券
+     * @return 卸载前的统计：sold 下单用户数，remainingStock 剩余库存
+     */
+    Map<String, String> unload(Long voucherId);
+
+    /**
+     * 扣库存、一人一单校验并投递订单
+     * @return SUCCESS、SOLD_OUT、DUPLICATE、NOT_STARTED、ENDED、NOT_LOADED、BUSY
+     */
+    int reserve(Long voucherId, Long userId, long orderId);
+
+    /**
+     * 订单取消时归还库存并移除用户的下单记录
+     * @return 是否归还了库存
+     */
+    boolean release(Long voucherId, Long userId);
+
+    /**
+     * 补充库存
+     */
+    void addStock(Long voucherId, int count);
+
+    /**
+     * 开始消费订单，handler抛出异常时这批订单会被重试
+     */
+    void consume(Consumer<List<VoucherOrder>> handler);
+}
@@ -0,0 +1,385 @@
+package com.ms.service.impl;
+
+import com.ms.entity.SeckillVoucher;
+import com.ms.entity.VoucherOrder;
+import com.ms.mapper.VoucherOrderMapper;
+import com.ms.service.SeckillEngine;
+import com.ms.utils.SeckillOrderResults;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * 进程内秒杀引擎
+ * 库存拆成多个分段的原子计数器，线程从随机分段开始CAS扣减，分段售罄后探测下一个分段；
+ * 一人一单用ConcurrentHashMap的keySet；订单放入有界的无锁环形队列，队列满时回滚并返回BUSY，
+ * 消费者线程批量取出交给订单处理器。
+ * 库存和未落库的订单只在内存中，进程重启会丢失，只适用于单节点部署和不依赖redis的压测。
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "seckill.engine", havingValue = "local")
+public class LocalSeckillEngine implements SeckillEngine {
+
+    /**
+     * 相邻分段间隔16个int（64字节），避免伪共享
+     */
+    private static final int PAD = 16;
+
+    @Resource
+    private SeckillOrderResults seckillOrderResults;
+
+    @Resource
+    private VoucherOrderMapper voucherOrderMapper;
+
+    @Value("${seckill.local.stripes:0}")
+    private int stripeConf;
+
+    @Value("${seckill.local.queue-capacity:65536}")
+    private int queueCapacity;
+
+    @Value("${seckill.order.consumers:4}")
+    private int consumerCount;
+
+    @Value("${seckill.order.batch-size:50}")
+    private int batchSize;
+
+    @Value("${seckill.order.max-attempts:10}")
+    private long maxAttempts;
+
+    private final Map<Long, VoucherState> vouchers = new ConcurrentHashMap<>();
+
+    private OrderRing queue;
+
+    private ExecutorService seckillOrderExecutor;
+
+    private volatile boolean running = true;
+
+    @PreDestroy
+    private void destroy() {
+        running = false;
+        if (seckillOrderExecutor != null) {
+            seckillOrderExecutor.shutdown();
+        }
+        if (queue != null && queue.size() > 0) {
+            log.warn("进程内秒杀引擎停止时还有{}个订单未落库", queue.size());
+        }
+    }
+
+    @Override
+    public void load(Long voucherId, int stock, long beginMillis, long endMillis) {
+        VoucherState state = vouchers.computeIfAbsent(voucherId, id -> new VoucherState(stripes()));
+        state.beginMillis = beginMillis;
+        state.endMillis = endMillis;
+        synchronized (state) {
+            //已加载的券不覆盖库存
+            if (!state.loaded) {
+                state.add(stock);
+                state.loaded = true;
+            }
+        }
+    }
+
+    @Override
+    public void loadConfig(SeckillVoucher seckillVoucher) {
+        //本地引擎按节点配置的分段数扣减，没有分片和租用
+    }
+
+    @Override
+    public boolean isLoaded(Long voucherId) {
+        VoucherState state = vouchers.get(voucherId);
+        return state != null && state.loaded;
+    }
+
+    @Override
+    public void restoreOrders(Long voucherId, List<Long> userIds) {
+        vouchers.computeIfAbsent(voucherId, id -> new VoucherState(stripes())).users.addAll(userIds);
+    }
+
+    @Override
+    public Map<String, String> unload(Long voucherId) {
+        VoucherState state = vouchers.remove(voucherId);
+        Map<String, String> stats = new HashMap<>();
+        stats.put("sold", String.valueOf(state == null ? 0 : state.users.size()));
+        stats.put("remainingStock", String.valueOf(state == null ? 0 : state.remaining()));
+        stats.put("shards", String.valueOf(state == null ? 0 : state.stripes));
+        return stats;
+    }
+
+    @Override
+    public int reserve(Long voucherId, Long userId, long orderId) {
+        VoucherState state = vouchers.get(voucherId);
+        if (state == null || !state.loaded) {
+            return NOT_LOADED;
+        }
+        long now = System.currentTimeMillis();
+        if (now < state.beginMillis) {
+            return NOT_STARTED;
+        }
+        if (now > state.endMillis) {
+            return ENDED;
+        }
+        //1.一人一单
+        if (!state.users.add(userId)) {
+            return DUPLICATE;
+        }
+        //2.扣库存
+        int slot = state.take();
+        if (slot < 0) {
+            state.users.remove(userId);
+            return SOLD_OUT;
+        }
+        //3.投递订单，队列满时回滚
+        VoucherOrder order = new VoucherOrder();
+        order.setId(orderId);
+        order.setUserId(userId);
+        order.setVoucherId(voucherId);
+        if (!queue.offer(order)) {
+            state.stock.addAndGet(slot, 1);
+            state.users.remove(userId);
+            return BUSY;
+        }
+        return SUCCESS;
+    }
+
+    @Override
+    public boolean release(Long voucherId, Long userId) {
+        VoucherState state = vouchers.get(voucherId);
+        if (state == null || !state.users.remove(userId)) {
+            return false;
+        }
+        state.stock.addAndGet(state.index(Math.floorMod(userId.hashCode(), state.stripes)), 1);
+        return true;
+    }
+
+    @Override
+    public void addStock(Long voucherId, int count) {
+        VoucherState state = vouchers.get(voucherId);
+        if (state != null) {
+            state.add(count);
+        }
+    }
+
+    @Override
+    public void consume(Consumer<List<VoucherOrder>> handler) {
+        queue = new OrderRing(ceilPow2(queueCapacity));
+        seckillOrderExecutor = Executors.newFixedThreadPool(consumerCount);
+        for (int i = 0; i < consumerCount; i++) {
+            seckillOrderExecutor.submit(() -> drain(handler));
+        }
+    }
+
+    private void drain(Consumer<List<VoucherOrder>> handler) {
+        List<VoucherOrder> batch = new ArrayList<>(batchSize);
+        while (running) {
+            VoucherOrder order;
+            while (batch.size() < batchSize && (order = queue.poll()) != null) {
+                batch.add(order);
+            }
+            if (batch.isEmpty()) {
+                //队列为空，短暂休眠
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+                continue;
+            }
+            handle(handler, batch);
+            batch.clear();
+        }
+    }
+
+    /**
+     * 处理一批订单，失败时退避重试，超过最大次数后放弃并归还库存
+     */
+    private void handle(Consumer<List<VoucherOrder>> handler, List<VoucherOrder> batch) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                handler.accept(batch);
+                return;
+            } catch (Exception e) {
+                if (attempt >= maxAttempts || !running) {
+                    log.error("{}个订单处理失败{}次，放弃未落库的订单并归还库存", batch.size(), attempt, e);
+                    giveUp(batch);
+                    return;
+                }
+                log.error("处理订单失败，第{}次重试", attempt, e);
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(Math.min(20L << Math.min(attempt, 10), 5000L)));
+            }
+        }
+    }
+
+    /**
+     * 订单处理器按券分别提交，同一批里部分券可能已经落库，只放弃数据库中没有的订单；
+     * 放弃前先记录放弃标记，预写日志对账时跳过这些订单，避免归还库存后又被补写造成超卖。
+     * 查询或记录失败时不归还库存，交给预写日志对账补写
+     */
+    private void giveUp(List<VoucherOrder> batch) {
+        List<VoucherOrder> lost = new ArrayList<>(batch.size());
+        try {
+            Set<Long> persisted = new HashSet<>();
+            voucherOrderMapper.selectBatchIds(batch.stream().map(VoucherOrder::getId).collect(Collectors.toList()))
+                    .forEach(o -> persisted.add(o.getId()));
+            for (VoucherOrder order : batch) {
+                if (!persisted.contains(order.getId())) {
+                    lost.add(order);
+                }
+            }
+            if (lost.isEmpty()) {
+                return;
+            }
+            voucherOrderMapper.insertAbandoned(lost, "处理失败" + maxAttempts + "次后放弃");
+        } catch (Exception e) {
+            log.error("记录放弃的订单失败，不归还库存", e);
+            return;
+        }
+        for (VoucherOrder order : lost) {
+            release(order.getVoucherId(), order.getUserId());
+        }
+        try {
+            seckillOrderResults.publish(lost, o -> SeckillOrderResults.FAILED);
+        } catch (Exception e) {
+            log.error("发布订单结果失败", e);
+        }
+    }
+
+    private int stripes() {
+        int n = stripeConf > 0 ? stripeConf : Runtime.getRuntime().availableProcessors();
+        return ceilPow2(n);
+    }
+
+    private static int ceilPow2(int n) {
+        return n <= 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+    }
+
+    private static class VoucherState {
+        private final int stripes;
+        private final AtomicIntegerArray stock;
+        private final Set<Long> users = ConcurrentHashMap.newKeySet();
+        private volatile long beginMillis;
+        private volatile long endMillis = Long.MAX_VALUE;
+        private volatile boolean loaded;
+
+        private VoucherState(int stripes) {
+            this.stripes = stripes;
+            this.stock = new AtomicIntegerArray(stripes * PAD);
+        }
+
+        private int index(int stripe) {
+            return stripe * PAD;
+        }
+
+        /**
+         * 平均分到各分段，余数给前面的分段
+         */
+        private void add(int count) {
+            for (int i = 0; i < stripes; i++) {
+                int n = count / stripes + (i < count % stripes ? 1 : 0);
+                if (n > 0) {
+                    stock.addAndGet(index(i), n);
+                }
+            }
+        }
+
+        /**
+         * 从随机分段开始扣减一个库存
+         * @return 扣减的分段在数组中的位置，-1表示售罄
+         */
+        private int take() {
+            int start = ThreadLocalRandom.current().nextInt(stripes);
+            for (int i = 0; i < stripes; i++) {
+                int idx = index((start + i) & (stripes - 1));
+                for (int n = stock.get(idx); n > 0; n = stock.get(idx)) {
+                    if (stock.compareAndSet(idx, n, n - 1)) {
+                        return idx;
+                    }
+                }
+            }
+            return -1;
+        }
+
+        private long remaining() {
+            long sum = 0;
+            for (int i = 0; i < stripes; i++) {
+                sum += stock.get(index(i));
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * 有界多生产者多消费者无锁环形队列（Vyukov）
+     * 每个槽位有一个序号：序号等于入队位置时可写，等于入队位置+1时可读。
+     */
+    private static class OrderRing {
+        private final int mask;
+        private final AtomicLongArray sequences;
+        private final AtomicReferenceArray<VoucherOrder> items;
+        private final AtomicLong head = new AtomicLong();
+        private final AtomicLong tail = new AtomicLong();
+
+        private OrderRing(int capacity) {
+            this.mask = capacity - 1;
+            this.sequences = new AtomicLongArray(capacity);
+            this.items = new AtomicReferenceArray<>(capacity);
+            for (int i = 0; i < capacity; i++) {
+                sequences.set(i, i);
+            }
+        }
+
+        private boolean offer(VoucherOrder order) {
+            while (true) {
+                long pos = tail.get();
+                int slot = (int) pos & mask;
+                long diff = sequences.get(slot) - pos;
+                if (diff == 0) {
+                    if (tail.compareAndSet(pos, pos + 1)) {
+                        items.lazySet(slot, order);
+                        sequences.set(slot, pos + 1);
+                        return true;
+                    }
+                } else if (diff < 0) {
+                    //队列已满
+                    return false;
+                }
+            }
+        }
+
+        private VoucherOrder poll() {
+            while (true) {
+                long pos = head.get();
+                int slot = (int) pos & mask;
+                long diff = sequences.get(slot) - (pos + 1);
+                if (diff == 0) {
+                    if (head.compareAndSet(pos, pos + 1)) {
+                        VoucherOrder order = items.get(slot);
+                        items.lazySet(slot, null);
+                        sequences.set(slot, pos + mask + 1);
+                        return order;
+                    }
+                } else if (diff < 0) {
+                    //队列为空
+                    return null;
+                }
+            }
+        }
+
+        private long size() {
+            return tail.get() - head.get();
+        }
+    }
+}
@@ -0,0 +1,442 @@
+package com.ms.service.impl;
+
+import cn.hutool.core.bean.BeanUtil;
+import com.ms.entity.SeckillVoucher;
+import com.ms.entity.VoucherOrder;
+import com.ms.service.SeckillEngine;
+import com.ms.utils.SeckillConsumerRegistry;
+import com.ms.utils.SeckillDeadLetterQueue;
+import com.ms.utils.SeckillSoldOutRegistry;
+import com.ms.utils.SeckillStockLeases;
+import com.ms.utils.SeckillStockShards;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+import static com.ms.utils.RedisConstants.*;
+
+/**
+ * 基于redis的秒杀引擎
+ * 下单：seckill.lua 一次完成扣库存、一人一单和 XADD stream.orders，分片和租用库存的券走各自的路径；
+ * 消费：多个消费者线程 XREADGROUP 批量读取，处理成功后一次XACK，失败的消息留在pending中重试，
+ * 超过最大投递次数转入死信队列，失效节点的pending消息由SeckillConsumerRegistry认领。
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "seckill.engine", havingValue = "redis", matchIfMissing = true)
+public class RedisSeckillEngine implements SeckillEngine {
+
+    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    private static final DefaultRedisScript<Long> CANCEL_SCRIPT;
+    static {
+        SECKILL_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
+        SECKILL_SCRIPT.setResultType(Long.class);
+        CANCEL_SCRIPT = new DefaultRedisScript<>();
+        CANCEL_SCRIPT.setLocation(new ClassPathResource("seckill_cancel.lua"));
+        CANCEL_SCRIPT.setResultType(Long.class);
+    }
+
+    //消息队列和消费组由SeckillConsumerRegistry在启动时创建 XGROUP CREATE stream.orders g1 0 MKSTREAM
+    private static final String queueName = SECKILL_ORDER_STREAM;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillStockShards seckillStockShards;
+
+    @Resource
+    private SeckillStockLeases seckillStockLeases;
+
+    @Resource
+    private SeckillSoldOutRegistry seckillSoldOutRegistry;
+
+    @Resource
+    private SeckillConsumerRegistry seckillConsumerRegistry;
+
+    @Resource
+    private SeckillDeadLetterQueue seckillDeadLetterQueue;
+
+    @Value("${seckill.order.consumers:4}")
+    private int consumerCount;
+
+    @Value("${seckill.order.batch-size:50}")
+    private int batchSize;
+
+    @Value("${seckill.order.max-attempts:10}")
+    private long maxAttempts;
+
+    /**
+     * 消息最近一次处理失败的原因，转入死信队列时一并记录
+     */
+    private final Map<String, String> failureReasons = new ConcurrentHashMap<>();
+
+    private ExecutorService seckillOrderExecutor; //多个消费者线程并行处理消息队列中的消息
+
+    private volatile boolean running = true;
+
+    private Consumer<List<VoucherOrder>> orderHandler;
+
+    @PreDestroy
+    private void destroy() {
+        running = false;
+        if (seckillOrderExecutor != null) {
+            seckillOrderExecutor.shutdown();
+        }
+    }
+
+    @Override
+    public void load(Long voucherId, int stock, long beginMillis, long endMillis) {
+        int shards = seckillStockShards.shardCount(voucherId);
+        if (shards > 1) {
+            seckillStockShards.init(voucherId, stock, shards);
+            seckillStockShards.initWindow(voucherId, shards, beginMillis, endMillis);
+            seckillStockShards.loadScript();
+            return;
+        }
+        //库存，已存在时不覆盖
+        stringRedisTemplate.opsForValue().setIfAbsent(SECKILL_STOCK_KEY + voucherId, String.valueOf(stock));
+        Map<String, String> window = new HashMap<>(2);
+        window.put("begin", String.valueOf(beginMillis));
+        window.put("end", String.valueOf(endMillis));
+        stringRedisTemplate.opsForHash().putAll(SECKILL_WINDOW_KEY + voucherId, window);
+        //预加载下单脚本 SCRIPT LOAD
+        stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.scriptingCommands()
+                .scriptLoad(SECKILL_SCRIPT.getScriptAsString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Override
+    public void loadConfig(SeckillVoucher seckillVoucher) {
+        Long voucherId = seckillVoucher.getVoucherId();
+        Integer chunk = seckillVoucher.getStockLeaseChunk();
+        Integer shards = seckillVoucher.getStockShards();
+        if (chunk != null && chunk > 0) {
+            seckillStockLeases.saveConfig(voucherId, chunk, seckillVoucher.getStockLeasePartitions());
+        } else if (shards != null && shards > 1) {
+            seckillStockShards.saveShardCount(voucherId, shards);
+        }
+    }
+
+    @Override
+    public boolean isLoaded(Long voucherId) {
+        int shards = seckillStockShards.shardCount(voucherId);
+        String stockKey = shards > 1 ? SeckillStockShards.stockKey(voucherId, 0) : SECKILL_STOCK_KEY + voucherId;
+        return Boolean.TRUE.equals(stringRedisTemplate.hasKey(stockKey));
+    }
+
+    @Override
+    public void restoreOrders(Long voucherId, List<Long> userIds) {
+        if (userIds.isEmpty()) {
+            return;
+        }
+        //按用户所在的key分组，和下单时的一人一单key一致
+        boolean leased = seckillStockLeases.isEnabled(voucherId);
+        int shards = seckillStockShards.shardCount(voucherId);
+        Map<String, List<String>> byKey = new HashMap<>();
+        for (Long userId : userIds) {
+            String key;
+            if (leased) {
+                key = seckillStockLeases.orderKey(voucherId, userId);
+            } else if (shards > 1) {
+                //分片模式的一人一单只记录在用户的主分片
+                key = SeckillStockShards.orderKey(voucherId, Math.floorMod(userId.hashCode(), shards));
+            } else {
+                key = SECKILL_ORDER_KEY + voucherId;
+            }
+            byKey.computeIfAbsent(key, k -> new ArrayList<>()).add(userId.toString());
+        }
+        //一次pipeline，每个key一条多成员的 SADD
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            byKey.forEach((key, members) -> conn.sAdd(key, members.toArray(new String[0])));
+            return null;
+        });
+    }
+
+    @Override
+    public Map<String, String> unload(Long voucherId) {
+        int shards = seckillStockShards.shardCount(voucherId);
+        long sold = 0;
+        long remaining;
+        if (shards > 1) {
+            for (int i = 0; i < shards; i++) {
+                Long size = stringRedisTemplate.opsForSet().size(SeckillStockShards.orderKey(voucherId, i));
+                sold += size == null ? 0 : size;
+            }
+            remaining = seckillStockShards.remove(voucherId, shards);
+        } else {
+            Long size = stringRedisTemplate.opsForSet().size(SECKILL_ORDER_KEY + voucherId);
+            sold = size == null ? 0 : size;
+            if (seckillStockLeases.isEnabled(voucherId)) {
+                //租用模式的一人一单按用户分区保存
+                sold += seckillStockLeases.remove(voucherId);
+            }
+            String stock = stringRedisTemplate.opsForValue().get(SECKILL_STOCK_KEY + voucherId);
+            remaining = stock == null ? 0 : Long.parseLong(stock);
+            //UNLINK在后台线程释放大集合的内存，不阻塞redis
+            stringRedisTemplate.unlink(Arrays.asList(
+                    SECKILL_STOCK_KEY + voucherId, SECKILL_ORDER_KEY + voucherId, SECKILL_WINDOW_KEY + voucherId));
+        }
+        Map<String, String> stats = new HashMap<>();
+        stats.put("sold", String.valueOf(sold));
+        stats.put("remainingStock", String.valueOf(remaining));
+        stats.put("shards", String.valueOf(shards));
+        return stats;
+    }
+
+    @Override
+    public int reserve(Long voucherId, Long userId, long orderId) {
+        //租用库存的券在本地扣库存
+        if (seckillStockLeases.isEnabled(voucherId)) {
+            return reserveLeased(voucherId, userId, orderId);
+        }
+        //分片的券走分片下单
+        int shards = seckillStockShards.shardCount(voucherId);
+        int r = shards > 1
+                ? reserveSharded(voucherId, userId, orderId, shards)
+                //执行lua脚本
+                : stringRedisTemplate.execute(
+                        SECKILL_SCRIPT,
+                        Collections.emptyList(),
+                        voucherId.toString(), userId.toString(), String.valueOf(orderId)
+                ).intValue();
+        if (r == SOLD_OUT) {
+            //库存为0，通知所有节点在本地拦截后续请求
+            seckillSoldOutRegistry.markSoldOut(voucherId);
+        }
+        return r;
+    }
+
+    private int reserveSharded(Long voucherId, Long userId, long orderId, int shards) {
+        //1.在分片上扣库存
+        int r = seckillStockShards.reserve(voucherId, userId, shards);
+        if (r != SUCCESS) {
+            return r;
+        }
+        //2.分片和消息队列不在同一个slot，单独发送消息 XADD stream.orders * k1 v1 ...
+        try {
+            send(voucherId, userId, orderId);
+        } catch (RuntimeException e) {
+            //发送失败，归还库存
+            seckillStockShards.release(voucherId, userId, shards);
+            throw e;
+        }
+        return SUCCESS;
+    }
+
+    private int reserveLeased(Long voucherId, Long userId, long orderId) {
+        //1.在本节点租用的库存中扣减，其它节点可能还有租用的库存，售罄时不广播
+        int r = seckillStockLeases.acquire(voucherId);
+        if (r != SUCCESS) {
+            return r;
+        }
+        //2.一人一单 SADD seckill:order:{voucherId:p} userId
+        if (!seckillStockLeases.markOrdered(voucherId, userId)) {
+            seckillStockLeases.giveBack(voucherId, 1);
+            return DUPLICATE;
+        }
+        //3.发送消息 XADD stream.orders * k1 v1 ...
+        try {
+            send(voucherId, userId, orderId);
+        } catch (RuntimeException e) {
+            //发送失败，撤销下单记录并归还库存
+            seckillStockLeases.unmarkOrdered(voucherId, userId);
+            seckillStockLeases.giveBack(voucherId, 1);
+            throw e;
+        }
+        return SUCCESS;
+    }
+
+    private void send(Long voucherId, Long userId, long orderId) {
+        Map<String, String> order = new HashMap<>();
+        order.put("userId", userId.toString());
+        order.put("voucherId", voucherId.toString());
+        order.put("id", String.valueOf(orderId));
+        stringRedisTemplate.opsForStream().add(StreamRecords.mapBacked(order).withStreamKey(queueName));
+    }
+
+    @Override
+    public boolean release(Long voucherId, Long userId) {
+        if (seckillStockLeases.isEnabled(voucherId)) {
+            return cancel(SECKILL_STOCK_KEY + voucherId, seckillStockLeases.orderKey(voucherId, userId), userId);
+        }
+        int shards = seckillStockShards.shardCount(voucherId);
+        if (shards > 1) {
+            //一人一单记录在用户的主分片，先试主分片；之前在其它分片记录的订单逐个尝试
+            int home = Math.floorMod(userId.hashCode(), shards);
+            for (int i = 0; i < shards; i++) {
+                int shard = (home + i) % shards;
+                if (cancel(SeckillStockShards.stockKey(voucherId, shard), SeckillStockShards.orderKey(voucherId, shard), userId)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return cancel(SECKILL_STOCK_KEY + voucherId, SECKILL_ORDER_KEY + voucherId, userId);
+    }
+
+    private boolean cancel(String stockKey, String orderKey, Long userId) {
+        Long r = stringRedisTemplate.execute(CANCEL_SCRIPT, Arrays.asList(stockKey, orderKey), userId.toString());
+        return r != null && r > 0;
+    }
+
+    @Override
+    public void addStock(Long voucherId, int count) {
+        int shards = seckillStockShards.shardCount(voucherId);
+        if (shards > 1) {
+            seckillStockShards.addStock(voucherId, count, shards);
+        } else {
+            stringRedisTemplate.opsForValue().increment(SECKILL_STOCK_KEY + voucherId, count);
+        }
+    }
+
+    @Override
+    public void consume(Consumer<List<VoucherOrder>> handler) {
+        this.orderHandler = handler;
+        seckillOrderExecutor = Executors.newFixedThreadPool(consumerCount);
+        for (int i = 0; i < consumerCount; i++) {
+            seckillOrderExecutor.submit(new VoucherOrderHandler(seckillConsumerRegistry.consumerName(i + 1)));
+        }
+        //心跳，并接管失效节点的pending消息
+        seckillConsumerRegistry.start(this::handlePendingRecords);
+    }
+
+    private class VoucherOrderHandler implements Runnable{
+
+        private final String consumerName;
+
+        VoucherOrderHandler(String consumerName) {
+            this.consumerName = consumerName;
+        }
+
+        @Override
+        public void run() {
+            while(running){
+                try{
+                    //读取消息队列中的消息 XREADGROUP GROUP g1 c1 COUNT N BLOCK 2000 STREAMS stream.orders >
+                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                            org.springframework.data.redis.connection.stream.Consumer.from(SECKILL_ORDER_GROUP, consumerName),
+                            StreamReadOptions.empty().count(batchSize).block(Duration.ofSeconds(2)),
+                            StreamOffset.create(queueName, ReadOffset.lastConsumed())
+                    );
+                    //判断消息是否获取成功
+                    if(list == null || list.isEmpty()){
+                        //没有说明没有消息，继续下一次获取
+                        continue;
+                    }
+                    //获取到了消息，整批解析、落库、ACK
+                    handleRecords(list);
+
+                }catch (Exception e){
+                    log.error("处理订单异常！",e);
+                    handlePendingList(consumerName);
+                }
+            }
+        }
+    }
+
+    private void handlePendingList(String consumerName) {
+        int failedRounds = 0;
+        while(running){
+            try{
+                //读取pending-list中的消息 XREADGROUP GROUP g1 c1 COUNT N STREAMS stream.orders 0
+                List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                        org.springframework.data.redis.connection.stream.Consumer.from(SECKILL_ORDER_GROUP, consumerName),
+                        StreamReadOptions.empty().count(batchSize),
+                        StreamOffset.create(queueName, ReadOffset.from("0"))
+                );
+                //判断消息是否获取成功
+                if(list == null || list.isEmpty()){
+                    //没有pending-list说明没有消息，结束循环
+                    break;
+                }
+                if(handlePendingRecords(consumerName, list)){
+                    failedRounds = 0;
+                    continue;
+                }
+            }catch (Exception e){
+                log.error("处理pending-list异常！",e);
+            }
+            //有消息处理失败，退避后重试，避免短暂故障时很快耗尽投递次数
+            try {
+                Thread.sleep(Math.min(20L << Math.min(failedRounds++, 10), 5000L));
+            } catch (InterruptedException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+    }
+
+    /**
+     * 处理pending中的消息：先整批重试，失败再逐条处理，超过最大投递次数的消息转入死信队列
+     * @return 是否全部处理成功
+     */
+    private boolean handlePendingRecords(String consumerName, List<? extends MapRecord<String, ?, ?>> list) {
+        try {
+            handleRecords(list);
+            return true;
+        } catch (Exception e) {
+            log.error("pending消息整批处理失败，逐条重试", e);
+        }
+        boolean allSucceeded = true;
+        Map<RecordId, Long> deliveries = seckillDeadLetterQueue.deliveryCounts(consumerName, list);
+        for (MapRecord<String, ?, ?> record : list) {
+            String recordId = record.getId().getValue();
+            long delivered = deliveries.getOrDefault(record.getId(), 0L);
+            if(delivered >= maxAttempts){
+                seckillDeadLetterQueue.deadLetter(record, failureReasons.remove(recordId), delivered);
+                continue;
+            }
+            try {
+                handleRecords(Collections.singletonList(record));
+                failureReasons.remove(recordId);
+            } catch (Exception e) {
+                allSucceeded = false;
+                failureReasons.put(recordId, String.valueOf(e.getMessage()));
+                log.error("处理订单消息{}失败，已投递{}次", recordId, delivered, e);
+            }
+        }
+        return allSucceeded;
+    }
+
+    /**
+     * 解析一批消息，交给订单处理器落库，再用一次XACK确认整批消息
+     */
+    private void handleRecords(List<? extends MapRecord<String, ?, ?>> list) {
+        List<VoucherOrder> orders = new ArrayList<>(list.size());
+        List<RecordId> ids = new ArrayList<>(list.size());
+        for (MapRecord<String, ?, ?> entries : list) {
+            try {
+                orders.add(BeanUtil.fillBeanWithMap(entries.getValue(), new VoucherOrder(), true));
+                ids.add(entries.getId());
+            } catch (Exception e) {
+                //消息格式错误，重试也不会成功，直接转入死信队列
+                seckillDeadLetterQueue.deadLetter(entries, "解析失败：" + e.getMessage(), 1);
+            }
+        }
+        if(orders.isEmpty()){
+            return;
+        }
+        //解析成功，落库后再ACK
+        orderHandler.accept(orders);
+        //ACK确认 XACK stream.orders g1 id1 id2 ...
+        stringRedisTemplate.opsForStream().acknowledge(queueName, SECKILL_ORDER_GROUP, ids.toArray(new RecordId[0]));
+    }
+}
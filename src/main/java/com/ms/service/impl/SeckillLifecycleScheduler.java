@@ -0,0 +1,243 @@
+package com.ms.service.impl;
+
+import com.ms.entity.SeckillVoucher;
+import com.ms.mapper.VoucherOrderMapper;
+import com.ms.service.ISeckillVoucherService;
+import com.ms.service.SeckillEngine;
+import com.ms.utils.SeckillWaitingRoom;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.ibatis.cursor.Cursor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.ms.utils.RedisConstants.*;
+
+/**
+ * 秒杀活动生命周期
+ * 1.预热：活动开始前prewarm-seconds把库存、时间窗口加载到秒杀引擎；
+ * 2.清理：活动结束grace-seconds后，把剩余库存、售出数量归档到 seckill:archive:{voucherId}，删除库存、订单集合、时间窗口和等候室。
+ * 预热时库存不存在（新券，或者redis被清空、更换），先补写本节点预写日志中这张券未落库的订单，
+ * 再用游标从数据库流式读取已下单的用户批量恢复一人一单，最后加载库存；
+ * 每次检查都会确认预热过的券库存还在，也可以通过 POST /admin/seckill/rehydrate 立即检查。
+ * 预热过的券记录在 seckill:active（score为结束时间），多个节点同时执行时预热是幂等的，清理以ZREM成功的节点为准。
+ */
+@Slf4j
+@Component
+public class SeckillLifecycleScheduler {
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillEngine seckillEngine;
+
+    @Resource
+    private VoucherOrderMapper voucherOrderMapper;
+
+    @Resource
+    private TransactionTemplate transactionTemplate;
+
+    @Resource
+    private SeckillWaitingRoom seckillWaitingRoom;
+
+    @Resource
+    private VoucherOrderWal voucherOrderWal;
+
+    @Value("${seckill.lifecycle.prewarm-seconds:300}")
+    private long prewarmSeconds;
+
+    @Value("${seckill.lifecycle.grace-seconds:600}")
+    private long graceSeconds;
+
+    @Value("${seckill.lifecycle.interval-seconds:10}")
+    private long intervalSeconds;
+
+    @Value("${seckill.lifecycle.archive-ttl-days:7}")
+    private long archiveTtlDays;
+
+    @Value("${seckill.lifecycle.rehydrate-batch:5000}")
+    private int rehydrateBatch;
+
+    private final ScheduledExecutorService lifecycleExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * 本节点已经预热过的券
+     */
+    private final Set<Long> warmed = ConcurrentHashMap.newKeySet();
+
+    @PostConstruct
+    private void init() {
+        lifecycleExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                warmUpcoming();
+                tearDownEnded();
+            } catch (Exception e) {
+                log.error("秒杀活动预热或清理异常！", e);
+            }
+        }, 0, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        lifecycleExecutor.shutdown();
+    }
+
+    /**
+     * 新建的秒杀券如果即将开始（或已经开始），立即预热
+     */
+    public void warmUpIfDue(SeckillVoucher seckillVoucher) {
+        if (!seckillVoucher.getBeginTime().isAfter(LocalDateTime.now().plusSeconds(prewarmSeconds))) {
+            warmUp(seckillVoucher);
+        }
+    }
+
+    /**
+     * 立即检查所有即将开始和进行中的券，库存没有加载的券从数据库恢复
+     * @return 恢复的券数
+     */
+    public int rehydrate() {
+        return warmUpcoming();
+    }
+
+    private int warmUpcoming() {
+        LocalDateTime now = LocalDateTime.now();
+        List<SeckillVoucher> upcoming = seckillVoucherService.query()
+                .le("begin_time", now.plusSeconds(prewarmSeconds))
+                .gt("end_time", now)
+                .list();
+        int restored = 0;
+        for (SeckillVoucher seckillVoucher : upcoming) {
+            Long voucherId = seckillVoucher.getVoucherId();
+            //预热过的券也要确认库存还在，redis被清空或更换后重新加载
+            boolean loaded = seckillEngine.isLoaded(voucherId);
+            if (warmed.contains(voucherId) && loaded) {
+                continue;
+            }
+            if (!loaded) {
+                restored++;
+                if (warmed.contains(voucherId)) {
+                    log.warn("秒杀券{}的库存已丢失，从数据库恢复", voucherId);
+                }
+            }
+            warmUp(seckillVoucher);
+        }
+        return restored;
+    }
+
+    private void warmUp(SeckillVoucher seckillVoucher) {
+        Long voucherId = seckillVoucher.getVoucherId();
+        long begin = toMillis(seckillVoucher.getBeginTime());
+        long end = toMillis(seckillVoucher.getEndTime());
+        //分片数和租用配置以数据库为准，先写入存储，判断是否已加载和恢复一人一单都依赖它
+        seckillEngine.loadConfig(seckillVoucher);
+        //1.库存没有加载时，先从数据库恢复已下单的用户，再加载库存，加载前的请求都返回未预热
+        if (!seckillEngine.isLoaded(voucherId)) {
+            //本节点预写日志中还没落库的订单先补写，恢复的一人一单和库存才包含这些订单
+            if (replayWal(voucherId) > 0) {
+                seckillVoucher = seckillVoucherService.getById(voucherId);
+            }
+            restoreOrders(voucherId);
+        }
+        //2.库存和时间窗口，已加载的库存不覆盖
+        seckillEngine.load(voucherId, seckillVoucher.getStock(), begin, end);
+        //3.登记到活动列表，结束后清理
+        stringRedisTemplate.opsForZSet().add(SECKILL_ACTIVE_KEY, voucherId.toString(), end);
+        warmed.add(voucherId);
+        log.info("秒杀券{}预热完成，库存{}", voucherId, seckillVoucher.getStock());
+    }
+
+    private int replayWal(Long voucherId) {
+        try {
+            return voucherOrderWal.reconcileVoucher(voucherId);
+        } catch (IOException e) {
+            throw new IllegalStateException("补写券" + voucherId + "的预写日志失败", e);
+        }
+    }
+
+    /**
+     * 用游标流式读取券的有效订单，每rehydrate-batch个用户写一次pipeline
+     */
+    private void restoreOrders(Long voucherId) {
+        int restored = transactionTemplate.execute(status -> {
+            int count = 0;
+            List<Long> batch = new ArrayList<>(rehydrateBatch);
+            try (Cursor<Long> cursor = voucherOrderMapper.selectOrderedUserIds(voucherId)) {
+                for (Long userId : cursor) {
+                    batch.add(userId);
+                    if (batch.size() >= rehydrateBatch) {
+                        seckillEngine.restoreOrders(voucherId, batch);
+                        count += batch.size();
+                        batch.clear();
+                    }
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("读取券" + voucherId + "的订单失败", e);
+            }
+            seckillEngine.restoreOrders(voucherId, batch);
+            return count + batch.size();
+        });
+        if (restored > 0) {
+            log.info("秒杀券{}恢复了{}个已下单的用户", voucherId, restored);
+        }
+    }
+
+    private void tearDownEnded() {
+        long deadline = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(graceSeconds);
+        Set<String> ended = stringRedisTemplate.opsForZSet().rangeByScore(SECKILL_ACTIVE_KEY, 0, deadline);
+        if (ended == null) {
+            return;
+        }
+        for (String id : ended) {
+            //ZREM成功的节点负责清理
+            Long removed = stringRedisTemplate.opsForZSet().remove(SECKILL_ACTIVE_KEY, id);
+            if (removed != null && removed > 0) {
+                tearDown(Long.valueOf(id));
+            }
+        }
+    }
+
+    private void tearDown(Long voucherId) {
+        //1.卸载库存和订单集合，统计售出数量和剩余库存
+        Map<String, String> archive = new HashMap<>(seckillEngine.unload(voucherId));
+        long remaining = Long.parseLong(archive.getOrDefault("remainingStock", "0"));
+        stringRedisTemplate.delete(SECKILL_LIMIT_CONF_KEY + voucherId);
+        if (seckillWaitingRoom.isEnabled(voucherId)) {
+            seckillWaitingRoom.remove(voucherId);
+        }
+        //2.归档
+        SeckillVoucher seckillVoucher = seckillVoucherService.getById(voucherId);
+        archive.put("archivedAt", String.valueOf(System.currentTimeMillis()));
+        if (seckillVoucher != null) {
+            archive.put("dbStock", String.valueOf(seckillVoucher.getStock()));
+            if (seckillVoucher.getStock() != remaining) {
+                log.warn("秒杀券{}清理时引擎剩余库存{}与数据库库存{}不一致", voucherId, remaining, seckillVoucher.getStock());
+            }
+        }
+        String archiveKey = SECKILL_ARCHIVE_KEY + voucherId;
+        stringRedisTemplate.opsForHash().putAll(archiveKey, archive);
+        stringRedisTemplate.expire(archiveKey, archiveTtlDays, TimeUnit.DAYS);
+        warmed.remove(voucherId);
+        log.info("秒杀券{}已清理，售出{}，剩余库存{}", voucherId, archive.get("sold"), remaining);
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
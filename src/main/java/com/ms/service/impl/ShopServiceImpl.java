@@ -9,18 +9,21 @@ import com.ms.dto.Result;
 import com.ms.entity.Shop;
 import com.ms.mapper.ShopMapper;
 import com.ms.service.IShopService;
+import com.ms.utils.CacheBloomFilter;
 import com.ms.utils.CacheClient;
 import com.ms.utils.RedisData;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 import java.time.LocalDateTime;
 import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import static com.ms.utils.RedisConstants.*;
 
@@ -38,6 +41,17 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     private CacheClient cacheClient;
 
+    @Resource
+    private CacheBloomFilter cacheBloomFilter;
+
+    @PostConstruct
+    private void init() {
+        // 店铺id的布隆过滤器，按id分页扫描tb_shop建立
+        cacheBloomFilter.register(CACHE_SHOP_KEY, (lastId, limit) -> query().select("id").gt("id", lastId)
+                .orderByAsc("id").last("limit " + limit).list()
+                .stream().map(Shop::getId).collect(Collectors.toList()));
+    }
+
     @Override
     public Result queryById(Long id) {
         Shop shop = queryWithMutex(id);
@@ -96,66 +110,9 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
          * @return
          */
     public Shop queryWithMutex(Long id){
-        String key = CACHE_SHOP_KEY + id;
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        if(StrUtil.isNotBlank(shopJson)){
-            //返回缓存中的值
-            Shop shop = JSONUtil.toBean(shopJson, Shop.class);
-            return shop;
-        }
-        //防止缓存穿透策略
-        if(StrUtil.isBlank(shopJson) && shopJson != null){
-            log.debug("查询不存在的值，防止穿透策略启动！");
-//            return Result.fail("查询不到该值！");
-            return null;
-        }
-
-        //实现缓存重建
-        boolean tryLock = false;
-        String LockKey = LOCK_SHOP_KEY + id;
-
-        try {
-            //4.1 先进行一次获取锁
-            tryLock = tryLock(LockKey);
-
-            //4.2 判断
-            while(!tryLock){
-                //4.3 失败，尝试休眠
-                Thread.sleep(50);
-                //再次获取锁
-                tryLock = tryLock(LockKey);
-            }
-
-            //4.4 成功获取，二次查询缓存，没有再查库
-            String shopJson2 = stringRedisTemplate.opsForValue().get(key);
-            if(StrUtil.isNotBlank(shopJson2)){
-                //返回缓存中的值
-                Shop shop = JSONUtil.toBean(shopJson2, Shop.class);
-                return shop;
-            }
-
-            //缓存中没有值
-            Shop shop = getById(id);
-
-            //模拟业务执行流程
-            Thread.sleep(200);
-            if(shop == null){
-                //数据库中没有值
-                //存储空值防止穿透
-                stringRedisTemplate.opsForValue().set(key,"",CACHE_NULL_TTL,TimeUnit.MINUTES);
-    //            return Result.fail("查询不到该值！");
-                return null;
-            }
-            //查询到了，写入缓存
-            String s = JSONUtil.toJsonStr(shop);
-            stringRedisTemplate.opsForValue().set(key,s,CACHE_SHOP_TTL,TimeUnit.MINUTES);
-            // 7.返回
-            return shop;
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        }finally {
-            unlock(LockKey);
-        }
+        //一级缓存 -> redis -> 数据库，本节点同一个店铺的并发未命中合并为一次重建
+        return cacheClient.queryWithMutex(CACHE_SHOP_KEY, id, Shop.class, this::getById,
+                CACHE_SHOP_TTL, TimeUnit.MINUTES);
     }
 
 
@@ -228,6 +185,16 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     }
 
 
+    @Override
+    public Result saveShop(Shop shop) {
+        // 1.写入数据库
+        save(shop);
+        // 2.加入布隆过滤器，并通知其它节点
+        cacheBloomFilter.add(CACHE_SHOP_KEY, shop.getId());
+        // 返回店铺id
+        return Result.ok(shop.getId());
+    }
+
     @Override
     @Transactional
     public Result update(Shop shop) {
@@ -237,8 +204,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         }
         // 1.更新数据库
         updateById(shop);
-        // 2.删除缓存
-        stringRedisTemplate.delete(CACHE_SHOP_KEY + id);
+        // 2.删除缓存，并通知所有节点删除一级缓存
+        cacheClient.delete(CACHE_SHOP_KEY + id);
         return Result.ok();
     }
 
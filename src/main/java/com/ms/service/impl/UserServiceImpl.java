@@ -11,6 +11,7 @@ import com.ms.dto.UserDTO;
 import com.ms.entity.User;
 import com.ms.mapper.UserMapper;
 import com.ms.service.IUserService;
+import com.ms.utils.CacheClient;
 import com.ms.utils.RegexUtils;
 import com.ms.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
@@ -22,10 +23,10 @@ import javax.annotation.Resource;
 import javax.servlet.http.HttpSession;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static com.ms.utils.RedisConstants.*;
 import static com.ms.utils.SystemConstants.USER_NICK_NAME_PREFIX;
@@ -41,6 +42,22 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private CacheClient cacheClient;
+
+    @Override
+    public Map<Long, UserDTO> queryUserDTOs(Collection<Long> ids) {
+        if (ids.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        // 一次MGET，未命中的用户一次IN查询
+        return cacheClient.queryBatchWithPassThrough(CACHE_USER_KEY, ids, UserDTO.class,
+                missing -> listByIds(missing).stream()
+                        .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
+                        .collect(Collectors.toMap(UserDTO::getId, Function.identity())),
+                CACHE_USER_TTL, TimeUnit.MINUTES);
+    }
+
     @Override
     public Result sendCode(String phone, HttpSession session) {
         //1.校验手机号
@@ -0,0 +1,133 @@
+package com.ms.service.impl;
+
+import com.ms.mapper.VoucherOrderMapper;
+import com.ms.service.IVoucherOrderService;
+import com.ms.utils.SeckillConsumerRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.ms.utils.RedisConstants.ORDER_ARCHIVE_LOCK_KEY;
+
+/**
+ * 订单归档
+ * 已核销、已取消、已退款并且秒杀已经结束的订单，最后更新超过after-days后分批移到按年份划分的冷表，
+ * 热表 tb_voucher_order 只保留进行中的订单，下单、一人一单、取消等热路径只访问热表。
+ * 每批在一个事务中先复制再删除，多个节点通过 SET NX 保证同一时刻只有一个节点在归档。
+ */
+@Slf4j
+@Component
+public class VoucherOrderArchiver {
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private VoucherOrderMapper voucherOrderMapper;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillConsumerRegistry seckillConsumerRegistry;
+
+    @Resource
+    private VoucherOrderHistory voucherOrderHistory;
+
+    @Value("${seckill.order-archive.enabled:true}")
+    private boolean enabled;
+
+    @Value("${seckill.order-archive.after-days:30}")
+    private long afterDays;
+
+    @Value("${seckill.order-archive.batch-size:500}")
+    private int batchSize;
+
+    @Value("${seckill.order-archive.interval-seconds:300}")
+    private long intervalSeconds;
+
+    @Value("${seckill.order-archive.max-batches:100}")
+    private int maxBatches;
+
+    private final ScheduledExecutorService archiveExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * 已创建的冷表
+     */
+    private final Set<String> archiveTables = ConcurrentHashMap.newKeySet();
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        archiveExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                archive();
+            } catch (Exception e) {
+                log.error("订单归档异常！", e);
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        archiveExecutor.shutdown();
+    }
+
+    private void archive() {
+        //1.同一时刻只有一个节点归档，锁的有效期覆盖一轮归档
+        String nodeId = seckillConsumerRegistry.nodeId();
+        Boolean locked = stringRedisTemplate.opsForValue().setIfAbsent(ORDER_ARCHIVE_LOCK_KEY, nodeId,
+                intervalSeconds, TimeUnit.SECONDS);
+        if (!Boolean.TRUE.equals(locked)) {
+            return;
+        }
+        int archived = 0;
+        try {
+            //2.分批归档，每轮最多max-batches批，避免长时间占用数据库
+            for (int i = 0; i < maxBatches; i++) {
+                LocalDateTime now = LocalDateTime.now();
+                List<Long> ids = voucherOrderMapper.selectArchivable(now.minusDays(afterDays), now, batchSize);
+                if (ids.isEmpty()) {
+                    break;
+                }
+                int moved = 0;
+                Map<String, List<Long>> byTable = ids.stream()
+                        .collect(Collectors.groupingBy(VoucherOrderMapper::archiveTable));
+                for (Map.Entry<String, List<Long>> entry : byTable.entrySet()) {
+                    if (!archiveTables.contains(entry.getKey())) {
+                        voucherOrderMapper.createArchiveTable(entry.getKey());
+                        archiveTables.add(entry.getKey());
+                        voucherOrderHistory.archiveTableCreated();
+                    }
+                    moved += voucherOrderService.archiveOrders(entry.getKey(), entry.getValue());
+                }
+                archived += moved;
+                if (moved == 0 || ids.size() < batchSize) {
+                    //没有更多订单，或者这批订单的状态刚刚发生了变化，下一轮再处理
+                    break;
+                }
+            }
+        } finally {
+            if (nodeId.equals(stringRedisTemplate.opsForValue().get(ORDER_ARCHIVE_LOCK_KEY))) {
+                stringRedisTemplate.delete(ORDER_ARCHIVE_LOCK_KEY);
+            }
+        }
+        if (archived > 0) {
+            log.info("归档订单{}条", archived);
+        }
+    }
+}
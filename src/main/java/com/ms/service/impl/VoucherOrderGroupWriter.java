@@ -0,0 +1,137 @@
+package com.ms.service.impl;
+
+import com.ms.entity.VoucherOrder;
+import com.ms.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * 订单组提交
+ * 各个消费者线程把解析好的订单交给这里，攒够max-rows条或等待max-delay-millis后，
+ * 每张券只执行一次多行 INSERT IGNORE 和一次 stock = stock - k。
+ * 写入是幂等的，某张券提交失败时整批消息不ACK，重试不会重复下单或重复扣库存。
+ */
+@Slf4j
+@Component
+public class VoucherOrderGroupWriter {
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Value("${seckill.order.group-commit.max-rows:200}")
+    private int maxRows;
+
+    @Value("${seckill.order.group-commit.max-delay-millis:5}")
+    private long maxDelayMillis;
+
+    private final BlockingQueue<PendingBatch> queue = new LinkedBlockingQueue<>();
+
+    private static final ExecutorService GROUP_COMMIT_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    private volatile boolean running = true;
+
+    /**
+     * 消费者提交的一批订单，全部落库后完成
+     */
+    private static class PendingBatch {
+        private final List<VoucherOrder> orders;
+        private final CompletableFuture<Set<Long>> future = new CompletableFuture<>();
+
+        private PendingBatch(List<VoucherOrder> orders) {
+            this.orders = orders;
+        }
+    }
+
+    @PostConstruct
+    private void init() {
+        GROUP_COMMIT_EXECUTOR.submit(this::commitLoop);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        running = false;
+        GROUP_COMMIT_EXECUTOR.shutdown();
+    }
+
+    /**
+     * 提交一批订单，返回的future在订单落库后完成，结果为其中因重复下单被忽略的订单id，失败时异常完成
+     */
+    public CompletableFuture<Set<Long>> write(List<VoucherOrder> orders) {
+        PendingBatch batch = new PendingBatch(orders);
+        queue.add(batch);
+        return batch.future;
+    }
+
+    private void commitLoop() {
+        while (running || !queue.isEmpty()) {
+            try {
+                //1.等待第一批订单
+                PendingBatch first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                //2.在等待时间内继续收集，直到攒够max-rows条
+                List<PendingBatch> batches = new ArrayList<>();
+                batches.add(first);
+                int rows = first.orders.size();
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+                while (rows < maxRows) {
+                    long wait = deadline - System.nanoTime();
+                    PendingBatch next = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batches.add(next);
+                    rows += next.orders.size();
+                }
+                //3.按券提交
+                commit(batches);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.error("订单组提交异常！", e);
+            }
+        }
+    }
+
+    private void commit(List<PendingBatch> batches) {
+        Map<Long, List<VoucherOrder>> byVoucher = new HashMap<>();
+        for (PendingBatch batch : batches) {
+            for (VoucherOrder order : batch.orders) {
+                byVoucher.computeIfAbsent(order.getVoucherId(), k -> new ArrayList<>()).add(order);
+            }
+        }
+        Set<Long> failedVouchers = new HashSet<>();
+        Set<Long> duplicates = new HashSet<>();
+        for (Map.Entry<Long, List<VoucherOrder>> entry : byVoucher.entrySet()) {
+            try {
+                duplicates.addAll(voucherOrderService.createVoucherOrders(entry.getValue()));
+            } catch (Exception e) {
+                log.error("券{}的订单提交失败！", entry.getKey(), e);
+                failedVouchers.add(entry.getKey());
+            }
+        }
+        for (PendingBatch batch : batches) {
+            boolean failed = batch.orders.stream().anyMatch(o -> failedVouchers.contains(o.getVoucherId()));
+            if (failed) {
+                batch.future.completeExceptionally(new IllegalStateException("订单提交失败"));
+            } else {
+                Set<Long> batchDuplicates = new HashSet<>();
+                for (VoucherOrder order : batch.orders) {
+                    if (duplicates.contains(order.getId())) {
+                        batchDuplicates.add(order.getId());
+                    }
+                }
+                batch.future.complete(batchDuplicates);
+            }
+        }
+    }
+}
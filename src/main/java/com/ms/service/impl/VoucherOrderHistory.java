@@ -0,0 +1,241 @@
+package com.ms.service.impl;
+
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONUtil;
+import com.ms.dto.ScrollResult;
+import com.ms.entity.VoucherOrder;
+import com.ms.mapper.VoucherOrderMapper;
+import com.ms.utils.RedisIdWorker;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.ms.utils.RedisConstants.*;
+
+/**
+ * 用户的订单列表
+ * 订单落库后把订单id写入用户最近订单 order:user:{userId}（ZSET，score都为0，成员是补齐到19位的订单id，按字典序即按id排序），
+ * 只保留最近recent-size个；翻页时先按id倒序从ZSET中取，不够一页再用(user_id, id)索引在热表和冷表中keyset查询，
+ * 已存在的冷表从information_schema中读取并定期刷新，只查询存在的冷表。
+ * 订单详情缓存在 cache:order:{id}，一次MGET取回，状态变化时删除。不使用OFFSET，也不COUNT订单表。
+ */
+@Slf4j
+@Component
+public class VoucherOrderHistory {
+
+    private static final int ID_WIDTH = 19;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private VoucherOrderMapper voucherOrderMapper;
+
+    @Value("${seckill.order-history.recent-size:200}")
+    private int recentSize;
+
+    @Value("${seckill.order-history.max-page-size:50}")
+    private int maxPageSize;
+
+    @Value("${seckill.order-history.archive-tables-refresh-seconds:60}")
+    private long archiveTablesRefreshSeconds;
+
+    /**
+     * 已存在冷表的年份，倒序
+     */
+    private volatile List<Integer> archiveYears = Collections.emptyList();
+
+    private volatile long archiveYearsLoadedAt;
+
+    /**
+     * 登记一批新落库的订单，一次pipeline
+     */
+    public void record(List<VoucherOrder> orders) {
+        if (orders.isEmpty()) {
+            return;
+        }
+        long ttl = TimeUnit.DAYS.toSeconds(USER_ORDER_TTL);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (VoucherOrder order : orders) {
+                String key = USER_ORDER_KEY + order.getUserId();
+                conn.zAdd(key, 0, member(order.getId()));
+                //只保留最近的订单，更早的订单走数据库
+                conn.zRemRange(key, 0, -recentSize - 1);
+                conn.expire(key, ttl);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 订单状态变化后删除详情缓存
+     */
+    public void evict(Long orderId) {
+        stringRedisTemplate.delete(CACHE_ORDER_KEY + orderId);
+    }
+
+    /**
+     * 按id倒序翻页
+     * @param max 上一页返回的minTime（最小的订单id），第一页不传
+     */
+    public ScrollResult page(Long userId, Long max, Integer count) {
+        int limit = Math.max(1, Math.min(count == null ? 10 : count, maxPageSize));
+        long cursor = max == null ? Long.MAX_VALUE : max;
+        //1.最近的订单 ZREVRANGEBYLEX order:user:{userId} (max - LIMIT 0 count
+        RedisZSetCommands.Range range = RedisZSetCommands.Range.range();
+        if (max != null) {
+            range.lt(member(cursor));
+        }
+        Set<String> members = stringRedisTemplate.opsForZSet().reverseRangeByLex(USER_ORDER_KEY + userId, range,
+                RedisZSetCommands.Limit.limit().count(limit));
+        List<Long> ids = members == null ? new ArrayList<>() :
+                members.stream().map(Long::valueOf).collect(Collectors.toList());
+        List<VoucherOrder> orders = hydrate(ids);
+        //2.不够一页，从最近订单中最小的id开始查数据库
+        if (ids.size() < limit) {
+            long from = ids.isEmpty() ? cursor : Math.min(cursor, ids.get(ids.size() - 1));
+            orders.addAll(queryBefore(userId, from, limit - ids.size()));
+        }
+        ScrollResult r = new ScrollResult();
+        r.setList(orders);
+        r.setOffset(0);
+        if (!orders.isEmpty()) {
+            r.setMinTime(orders.get(orders.size() - 1).getId());
+        } else if (!ids.isEmpty()) {
+            //这一页的订单都已经不存在，从最小的id继续
+            r.setMinTime(ids.get(ids.size() - 1));
+        }
+        return r;
+    }
+
+    /**
+     * 按id批量取订单详情，缓存未命中的查库后回填，已不存在的订单被跳过
+     */
+    private List<VoucherOrder> hydrate(List<Long> ids) {
+        if (ids.isEmpty()) {
+            return new ArrayList<>();
+        }
+        List<String> keys = ids.stream().map(id -> CACHE_ORDER_KEY + id).collect(Collectors.toList());
+        List<String> cached = stringRedisTemplate.opsForValue().multiGet(keys);
+        Map<Long, VoucherOrder> found = new HashMap<>(ids.size());
+        List<Long> missing = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i++) {
+            String json = cached == null ? null : cached.get(i);
+            if (StrUtil.isNotBlank(json)) {
+                found.put(ids.get(i), JSONUtil.toBean(json, VoucherOrder.class));
+            } else {
+                missing.add(ids.get(i));
+            }
+        }
+        if (!missing.isEmpty()) {
+            Map<Long, VoucherOrder> loaded = voucherOrderMapper.selectBatchIds(missing).stream()
+                    .collect(Collectors.toMap(VoucherOrder::getId, Function.identity()));
+            for (Long id : missing) {
+                VoucherOrder order = loaded.get(id);
+                if (order == null) {
+                    //不在热表中，可能已经归档
+                    order = voucherOrderMapper.selectByIdWithArchive(id);
+                }
+                if (order != null) {
+                    found.put(id, order);
+                    loaded.put(id, order);
+                }
+            }
+            cache(loaded.values());
+        }
+        List<VoucherOrder> orders = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            VoucherOrder order = found.get(id);
+            if (order != null) {
+                orders.add(order);
+            }
+        }
+        return orders;
+    }
+
+    private void cache(Collection<VoucherOrder> orders) {
+        if (orders.isEmpty()) {
+            return;
+        }
+        long ttl = TimeUnit.MINUTES.toSeconds(CACHE_ORDER_TTL);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (VoucherOrder order : orders) {
+                conn.setEx(CACHE_ORDER_KEY + order.getId(), ttl, JSONUtil.toJsonStr(order));
+            }
+            return null;
+        });
+    }
+
+    /**
+     * keyset查询id小于from的订单：先查热表，再从from所在的年份往前查存在的冷表，合并后取前limit个
+     */
+    private List<VoucherOrder> queryBefore(Long userId, long from, int limit) {
+        List<VoucherOrder> orders = new ArrayList<>(voucherOrderMapper.selectUserOrdersBefore(
+                "tb_voucher_order", userId, from, limit));
+        int fromYear = from == Long.MAX_VALUE ? LocalDate.now().getYear() : RedisIdWorker.timeOf(from).getYear();
+        for (Integer year : archiveYears()) {
+            if (year > fromYear) {
+                continue;
+            }
+            List<VoucherOrder> archived = voucherOrderMapper.selectUserOrdersBefore(
+                    VoucherOrderMapper.ARCHIVE_TABLE_PREFIX + year, userId, from, limit);
+            orders.addAll(archived);
+            if (archived.size() >= limit) {
+                //更早年份的订单id都更小，不会进入这一页
+                break;
+            }
+        }
+        orders.sort(Comparator.comparing(VoucherOrder::getId).reversed());
+        return orders.size() > limit ? new ArrayList<>(orders.subList(0, limit)) : orders;
+    }
+
+    /**
+     * 归档创建了新的冷表，下次翻页时重新读取
+     */
+    public void archiveTableCreated() {
+        archiveYearsLoadedAt = 0;
+    }
+
+    /**
+     * 已存在冷表的年份，超过刷新间隔时重新读取information_schema，读取失败时沿用上一次的结果
+     */
+    private List<Integer> archiveYears() {
+        if (System.currentTimeMillis() - archiveYearsLoadedAt < TimeUnit.SECONDS.toMillis(archiveTablesRefreshSeconds)) {
+            return archiveYears;
+        }
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (now - archiveYearsLoadedAt >= TimeUnit.SECONDS.toMillis(archiveTablesRefreshSeconds)) {
+                try {
+                    archiveYears = voucherOrderMapper.selectArchiveTables().stream()
+                            .map(t -> t.substring(VoucherOrderMapper.ARCHIVE_TABLE_PREFIX.length()))
+                            .filter(y -> y.matches("\\d{4}"))
+                            .map(Integer::valueOf)
+                            .sorted(Comparator.reverseOrder())
+                            .collect(Collectors.toList());
+                } catch (Exception e) {
+                    log.error("读取冷表列表失败", e);
+                }
+                archiveYearsLoadedAt = now;
+            }
+        }
+        return archiveYears;
+    }
+
+    private static String member(long orderId) {
+        return StrUtil.padPre(String.valueOf(orderId), ID_WIDTH, '0');
+    }
+}
@@ -1,31 +1,32 @@
 package com.ms.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.ms.dto.Result;
+import com.ms.dto.WaitingRoomDTO;
 import com.ms.entity.VoucherOrder;
 import com.ms.mapper.VoucherOrderMapper;
 import com.ms.service.IVoucherOrderService;
+import com.ms.service.SeckillEngine;
 import com.ms.utils.RedisIdWorker;
+import com.ms.utils.SeckillDeadLetterQueue;
+import com.ms.utils.SeckillLagMonitor;
+import com.ms.utils.SeckillOrderResults;
+import com.ms.utils.SeckillRateLimiter;
+import com.ms.utils.SeckillSoldOutRegistry;
+import com.ms.utils.SeckillWaitingRoom;
 import com.ms.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
-import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.ClassPathResource;
-import org.springframework.data.redis.connection.stream.*;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.annotation.PostConstruct;
-import java.time.Duration;
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.stream.Collectors;
 
 /**
  * @author: Omerta
@@ -44,101 +45,85 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Autowired
     RedisIdWorker redisIdWorker;
 
+    @Autowired
+    SeckillSoldOutRegistry seckillSoldOutRegistry;
+
+    @Autowired
+    SeckillWaitingRoom seckillWaitingRoom;
+
+    @Autowired
+    VoucherOrderGroupWriter voucherOrderGroupWriter;
+
+    @Autowired
+    VoucherOrderTimeoutEngine voucherOrderTimeoutEngine;
+
+    @Autowired
+    VoucherOrderWal voucherOrderWal;
+
+    @Autowired
+    VoucherOrderHistory voucherOrderHistory;
+
+    @Autowired
+    SeckillLagMonitor seckillLagMonitor;
+
+    @Autowired
+    SeckillRateLimiter seckillRateLimiter;
+
+    @Autowired
+    SeckillOrderResults seckillOrderResults;
+
     @Autowired
     StringRedisTemplate stringRedisTemplate;
 
     @Autowired
     RedissonClient redissonClient;
 
-    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
-    static {
-        SECKILL_SCRIPT = new DefaultRedisScript<>();
-        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
-        SECKILL_SCRIPT.setResultType(Long.class);
-    }
+    @Autowired
+    SeckillEngine seckillEngine;
 
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor(); //开个单线程用于处理消息队列中的消息
+    @Autowired
+    SeckillDeadLetterQueue seckillDeadLetterQueue;
 
     //类初始化后立即执行
     @PostConstruct
     private void init(){
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+        //由秒杀引擎投递订单，批量落库
+        seckillEngine.consume(this::handleOrders);
     }
 
-    //提前往redis中创建好了消息队列 XGROUP CREATE stream.orders g1 0 MKSTREAM
-
-    private static final String queueName = "stream.orders";
-
-
-    private class VoucherOrderHandler implements Runnable{
-
-        @Override
-        public void run() {
-            while(true){
-                try{
-                    //读取消息队列中的消息 XREADGROUP GROUP g1 c1 COUNT 1 STREAMS stream.orders >
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            StreamOffset.create(queueName, ReadOffset.lastConsumed())
-                    );
-                    //判断消息是否获取成功
-                    if(list == null || list.isEmpty()){
-                        //没有说明没有消息，继续下一次获取
-                        continue;
-                    }
-                    //获取到了消息，需要进行解析
-                    MapRecord<String, Object, Object> entries = list.get(0);
-                    Map<Object, Object> value = entries.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-                    //解析成功，可以下单
-                    handleVoucherOrder(voucherOrder);
-                    //ACK确认 SACK stream.orders g1 id
-                    stringRedisTemplate.opsForStream().acknowledge(queueName,"c1",entries.getId());
-
-                }catch (Exception e){
-                    log.error("处理订单异常！",e);
-                    handlePendingList();
-                }
+    /**
+     * 组提交落库一批订单，发布订单结果并登记支付截止时间；抛出异常时由秒杀引擎重试
+     */
+    private void handleOrders(List<VoucherOrder> orders) {
+        Set<Long> duplicates = voucherOrderGroupWriter.write(orders).join();
+        //发布订单结果，唤醒长轮询的请求
+        List<VoucherOrder> persisted = new ArrayList<>(orders.size());
+        for (VoucherOrder order : orders) {
+            if(!duplicates.contains(order.getId())){
+                persisted.add(order);
             }
         }
-    }
-
-    private void handlePendingList() {
-        while(true){
-            try{
-                //读取pending-list中的消息 XREADGROUP GROUP g1 c1 COUNT 1 STREAMS stream.orders 0
-                List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                        Consumer.from("g1", "c1"),
-                        StreamReadOptions.empty().count(1),
-                        StreamOffset.create(queueName, ReadOffset.from("0"))
-                );
-                //判断消息是否获取成功
-                if(list == null || list.isEmpty()){
-                    //没有pending-list说明没有消息，结束循环
-                    break;
-                }
-                //获取到了消息，需要进行解析
-                MapRecord<String, Object, Object> entries = list.get(0);
-                Map<Object, Object> value = entries.getValue();
-                VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-                //解析成功，可以下单
-                handleVoucherOrder(voucherOrder);
-                //ACK确认 SACK stream.orders g1 id
-                stringRedisTemplate.opsForStream().acknowledge(queueName,"c1",entries.getId());
-
-            }catch (Exception e){
-                log.error("处理pending-list异常！",e);
-                try {
-                    Thread.sleep(20);
-                } catch (InterruptedException ex) {
-                    throw new RuntimeException(ex);
-                }
-            }
+        try {
+            seckillOrderResults.publish(orders, o -> duplicates.contains(o.getId())
+                    ? SeckillOrderResults.DUPLICATE : SeckillOrderResults.PERSISTED);
+        } catch (Exception e) {
+            //结果只用于查询，发布失败不影响已落库的订单
+            log.error("发布订单结果失败", e);
+        }
+        //登记支付截止时间，超时未支付自动取消
+        try {
+            voucherOrderTimeoutEngine.schedule(persisted);
+        } catch (Exception e) {
+            log.error("登记订单支付截止时间失败", e);
+        }
+        //写入用户最近订单
+        try {
+            voucherOrderHistory.record(persisted);
+        } catch (Exception e) {
+            log.error("登记用户最近订单失败", e);
         }
     }
 
-
 //    @Override
 //    public Result seckillVoucher(Long voucherId) {
 //        //获取用户
@@ -169,46 +154,101 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
     @Override
     public Result seckillVoucher(Long voucherId) {
+        return seckillVoucher(voucherId, null);
+    }
+
+    @Override
+    public Result seckillVoucher(Long voucherId, String admissionToken) {
+        //本地已经标记售罄，不再访问redis
+        if(seckillSoldOutRegistry.isSoldOut(voucherId)){
+            return Result.fail("库存不足！");
+        }
+        //本节点限流
+        if(!seckillRateLimiter.tryAcquireLocal(voucherId)){
+            return Result.fail("抢购人数过多，请稍后重试！");
+        }
+        //订单队列积压过多，提前拒绝，避免下单后长时间等不到结果
+        if(seckillLagMonitor.isOverloaded()){
+            return Result.fail("系统繁忙，请稍后重试！");
+        }
         //获取用户
         Long id = UserHolder.getUser().getId();
+        //开启等候室的券，本地校验准入令牌
+        if(seckillWaitingRoom.isEnabled(voucherId) && !seckillWaitingRoom.verify(voucherId, id, admissionToken)){
+            return Result.fail("请先排队，等待放行后再抢购！");
+        }
+        //用户限流
+        if(!seckillRateLimiter.tryAcquireUser(voucherId, id)){
+            return Result.fail("请求过于频繁，请稍后重试！");
+        }
         //获取订单id
         long orderId = redisIdWorker.nextId("order");
-        //1.执行lua脚本
-        Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(), id.toString(), String.valueOf(orderId)
-        );
-
-        //判断结果是否为0
-        int r = result.intValue();
-        if(r != 0){
+        //扣库存、一人一单并投递订单
+        int r = seckillEngine.reserve(voucherId, id, orderId);
+        if(r != SeckillEngine.SUCCESS){
             //不等于0，表示抢购失败
-            return Result.fail(r == 1 ? "库存不足！":"您已经下过单了！");
+            return seckillFail(r);
         }
+        //写入本地预写日志，redis丢失消息时由预写日志补写
+        voucherOrderWal.append(orderId, voucherId, id);
 
         //3.返回订单信息
         return Result.ok(orderId);
     }
 
-
-    private void handleVoucherOrder(VoucherOrder voucherOrder){
-        //1.获取用户id
-        Long userId = voucherOrder.getUserId();
-        //2.获取锁对象
-        RLock lock = redissonClient.getLock("order:" + userId);
-        boolean isLock = lock.tryLock();
-        if(!isLock){
-            log.debug("不允许重复下单!");
+    @Override
+    public Result joinWaitingRoom(Long voucherId) {
+        if(!seckillWaitingRoom.isEnabled(voucherId)){
+            return Result.fail("该券不需要排队！");
         }
-        try{
-            voucherOrderServiceImpl.createVoucherOrder(voucherOrder); //防止事务失效
-        }finally {
-            lock.unlock();
+        if(seckillSoldOutRegistry.isSoldOut(voucherId)){
+            return Result.fail("库存不足！");
         }
+        Long id = UserHolder.getUser().getId();
+        return Result.ok(seckillWaitingRoom.join(voucherId, id));
     }
 
+    @Override
+    public Result queryWaitingRoom(Long voucherId) {
+        Long id = UserHolder.getUser().getId();
+        WaitingRoomDTO position = seckillWaitingRoom.position(voucherId, id);
+        if(position == null){
+            return Result.fail("您还没有排队！");
+        }
+        return Result.ok(position);
+    }
 
+    @Override
+    public Result queryDeadLetters(Integer count) {
+        return Result.ok(seckillDeadLetterQueue.list(count));
+    }
+
+    @Override
+    public Result replayDeadLetter(String id) {
+        if(!seckillDeadLetterQueue.replay(id)){
+            return Result.fail("死信不存在！");
+        }
+        return Result.ok();
+    }
+
+    private Result seckillFail(int r) {
+        switch (r) {
+            case SeckillEngine.SOLD_OUT:
+                return Result.fail("库存不足！");
+            case SeckillEngine.DUPLICATE:
+                return Result.fail("您已经下过单了！");
+            case SeckillEngine.NOT_STARTED:
+                return Result.fail("秒杀尚未开始！");
+            case SeckillEngine.ENDED:
+                return Result.fail("秒杀已经结束！");
+            case SeckillEngine.BUSY:
+                //本地引擎的订单队列已满
+                return Result.fail("系统繁忙，请稍后重试！");
+            default:
+                //未预热或活动结束后已清理
+                return Result.fail("秒杀未开始或已结束！");
+        }
+    }
 
 
 //    @Override
@@ -305,31 +345,88 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 //    }
 
     @Override
-    @Transactional
     public void createVoucherOrder(VoucherOrder voucherOrder) {
-        //一人一单
-        Long userId = voucherOrder.getUserId();
-
-        /**
-         * 可以保证比较的是值（userId是包装类对象，直接比较不会相等,toString也只是new了一个新string对象）
-         *         需要用intern()方法
-         */
-        //查询订单
-        Integer count = query().eq("voucher_id", voucherOrder.getVoucherId()).eq("user_id", userId).count();
-
-        //判断是否已经购买过
-        if(count > 0){
-            log.debug("您已经抢购过此商品！");
-            return;
+        voucherOrderServiceImpl.createVoucherOrders(Collections.singletonList(voucherOrder));
+    }
+
+    @Override
+    @Transactional
+    public Set<Long> createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        Set<Long> duplicates = new HashSet<>();
+        Map<Long, List<VoucherOrder>> byVoucher = voucherOrders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId));
+        for (Map.Entry<Long, List<VoucherOrder>> entry : byVoucher.entrySet()) {
+            //1.一人一单由唯一索引(voucher_id, user_id, active_flag)保证，重复的订单被忽略
+            int inserted = getBaseMapper().insertIgnoreBatch(entry.getValue());
+            if(inserted < entry.getValue().size()){
+                log.debug("券{}忽略了{}条重复订单", entry.getKey(), entry.getValue().size() - inserted);
+                //订单id不在表中的才是重复下单，在表中的是重试时已经写入的订单
+                //已取消的订单不在唯一索引中，用户重新下单插入新行
+                Set<Long> ids = entry.getValue().stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+                Set<Long> existing = query().select("id").in("id", ids).list().stream()
+                        .map(VoucherOrder::getId).collect(Collectors.toSet());
+                for (VoucherOrder order : entry.getValue()) {
+                    if(!existing.contains(order.getId())){
+                        duplicates.add(order.getId());
+                    }
+                }
+            }
+            if(inserted == 0){
+                continue;
+            }
+            //2.按实际插入的行数扣除库存 stock = stock - k
+            boolean isUpdate = seckillVoucherService.update()
+                    .setSql("stock = stock - " + inserted)
+                    .eq("voucher_id", entry.getKey()).ge("stock", inserted).update();
+            if(!isUpdate){
+                //库存不足，回滚整个事务
+                throw new IllegalStateException("扣除库存失败，券：" + entry.getKey());
+            }
         }
+        return duplicates;
+    }
 
-        //5.扣除库存
-        boolean isUpdate = seckillVoucherService.update().setSql("stock = stock -1").eq("voucher_id", voucherOrder.getVoucherId()).gt("stock",0).update();
-        if(!isUpdate){
-            log.debug("扣除库存失败");
-            return;
+    @Override
+    @Transactional
+    public boolean cancelUnpaidOrder(Long orderId, Long voucherId) {
+        //1.只取消未支付的订单 update ... set status = 4 where id = ? and status = 1
+        boolean cancelled = update().set("status", 4).set("update_time", LocalDateTime.now())
+                .eq("id", orderId).eq("status", 1).update();
+        if(!cancelled){
+            return false;
         }
+        //2.归还库存
+        seckillVoucherService.update().setSql("stock = stock + 1").eq("voucher_id", voucherId).update();
+        voucherOrderHistory.evict(orderId);
+        return true;
+    }
 
-        save(voucherOrder);
+    @Override
+    @Transactional
+    public int archiveOrders(String table, List<Long> orderIds) {
+        //1.复制到冷表 insert ignore into ${table} select * from tb_voucher_order where id in (...)
+        getBaseMapper().copyToArchive(table, orderIds);
+        //2.只删除冷表中已经有的订单
+        return getBaseMapper().deleteArchived(table, orderIds);
+    }
+
+    @Override
+    public Result queryOrder(Long orderId) {
+        VoucherOrder order = getBaseMapper().selectByIdWithArchive(orderId);
+        if(order == null || !order.getUserId().equals(UserHolder.getUser().getId())){
+            return Result.fail("订单不存在！");
+        }
+        return Result.ok(order);
+    }
+
+    @Override
+    public Result queryMyOrders(Long max, Integer count) {
+        Long userId = UserHolder.getUser().getId();
+        return Result.ok(voucherOrderHistory.page(userId, max, count));
+    }
+
+    @Override
+    public DeferredResult<Result> queryOrderStatus(Long orderId, Long timeoutSeconds) {
+        return seckillOrderResults.await(orderId, UserHolder.getUser().getId(), timeoutSeconds);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,245 @@
+package com.ms.service.impl;
+
+import com.ms.entity.VoucherOrder;
+import com.ms.service.IVoucherOrderService;
+import com.ms.service.SeckillEngine;
+import com.ms.utils.RedisIdWorker;
+import com.ms.utils.SeckillConsumerRegistry;
+import com.ms.utils.SeckillSoldOutRegistry;
+import io.netty.util.HashedWheelTimer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.ms.utils.RedisConstants.*;
+
+/**
+ * 未支付订单超时取消
+ * 订单落库后按支付截止时间放入桶 seckill:pay:timeout:{bucket}（ZSET，score为截止时间，每bucket-seconds一个桶），
+ * 非空的桶登记在 seckill:pay:buckets 中。各节点定时认领即将到期的桶（SET NX），把桶里的订单加载到本地的时间轮，
+ * 到期后在事务中把未支付的订单改为已取消并归还数据库库存，再由秒杀引擎移除用户的下单记录并归还库存。
+ * 每个桶只被一个节点加载，节点失效后认领过期，其它节点重新认领，取消是幂等的；
+ * 订单已取消而超时记录还在时（上次在归还引擎库存前中断）同样归还，用订单级的认领保证只归还一次。不扫描tb_voucher_order。
+ */
+@Slf4j
+@Component
+public class VoucherOrderTimeoutEngine {
+
+    private static final int LOAD_PAGE_SIZE = 1000;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillConsumerRegistry seckillConsumerRegistry;
+
+    @Resource
+    private SeckillEngine seckillEngine;
+
+    @Resource
+    private SeckillSoldOutRegistry seckillSoldOutRegistry;
+
+    @Value("${seckill.pay.timeout-seconds:900}")
+    private long timeoutSeconds;
+
+    @Value("${seckill.pay.bucket-seconds:10}")
+    private long bucketSeconds;
+
+    @Value("${seckill.pay.lookahead-buckets:3}")
+    private int lookaheadBuckets;
+
+    @Value("${seckill.pay.workers:2}")
+    private int workers;
+
+    private final HashedWheelTimer wheel = new HashedWheelTimer(100, TimeUnit.MILLISECONDS, 1024);
+
+    private final ScheduledExecutorService claimExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    private ExecutorService cancelExecutor;
+
+    /**
+     * 本节点已加载的桶 -> 未到期的订单数
+     */
+    private final Map<Long, AtomicInteger> loadedBuckets = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        cancelExecutor = Executors.newFixedThreadPool(workers);
+        claimExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                claimBuckets();
+            } catch (Exception e) {
+                log.error("认领超时订单桶异常！", e);
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        claimExecutor.shutdown();
+        //未到期的订单留在redis中，认领过期后由其它节点加载
+        wheel.stop();
+        cancelExecutor.shutdown();
+    }
+
+    /**
+     * 登记一批新落库订单的支付截止时间，一次pipeline
+     */
+    public void schedule(List<VoucherOrder> orders) {
+        if (orders.isEmpty()) {
+            return;
+        }
+        long expireSeconds = timeoutSeconds + TimeUnit.DAYS.toSeconds(1);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (VoucherOrder order : orders) {
+                //截止时间由订单id中的下单时间算出，重试时落在同一个桶，ZADD是幂等的
+                long deadline = RedisIdWorker.timeOf(order.getId()).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli()
+                        + TimeUnit.SECONDS.toMillis(timeoutSeconds);
+                long bucket = bucketOf(deadline);
+                String key = SECKILL_PAY_TIMEOUT_KEY + bucket;
+                conn.zAdd(key, deadline, member(order));
+                conn.expire(key, expireSeconds);
+                conn.zAdd(SECKILL_PAY_BUCKETS_KEY, bucket, String.valueOf(bucket));
+            }
+            return null;
+        });
+    }
+
+    private void claimBuckets() {
+        long horizon = bucketOf(System.currentTimeMillis()) + lookaheadBuckets;
+        //1.到期或即将到期的桶，包括失效节点没处理完的旧桶
+        Set<String> buckets = stringRedisTemplate.opsForZSet().rangeByScore(SECKILL_PAY_BUCKETS_KEY, 0, horizon);
+        if (buckets == null) {
+            return;
+        }
+        for (String b : buckets) {
+            long bucket = Long.parseLong(b);
+            if (loadedBuckets.containsKey(bucket)) {
+                continue;
+            }
+            //2.认领 SET seckill:pay:claim:{bucket} nodeId NX EX，有效期覆盖到桶结束后一段时间
+            long bucketEnd = (bucket + 1) * TimeUnit.SECONDS.toMillis(bucketSeconds);
+            long ttl = Math.max(0, bucketEnd - System.currentTimeMillis()) + TimeUnit.SECONDS.toMillis(bucketSeconds * 6);
+            Boolean claimed = stringRedisTemplate.opsForValue().setIfAbsent(SECKILL_PAY_CLAIM_KEY + bucket,
+                    seckillConsumerRegistry.nodeId(), ttl, TimeUnit.MILLISECONDS);
+            if (Boolean.TRUE.equals(claimed)) {
+                load(bucket);
+            }
+        }
+    }
+
+    /**
+     * 分页加载桶中的订单到时间轮
+     */
+    private void load(long bucket) {
+        String key = SECKILL_PAY_TIMEOUT_KEY + bucket;
+        AtomicInteger pending = new AtomicInteger(1);
+        loadedBuckets.put(bucket, pending);
+        long now = System.currentTimeMillis();
+        for (long start = 0; ; start += LOAD_PAGE_SIZE) {
+            Set<ZSetOperations.TypedTuple<String>> page = stringRedisTemplate.opsForZSet()
+                    .rangeWithScores(key, start, start + LOAD_PAGE_SIZE - 1);
+            if (page == null || page.isEmpty()) {
+                break;
+            }
+            for (ZSetOperations.TypedTuple<String> tuple : page) {
+                long delay = Math.max(0, tuple.getScore().longValue() - now);
+                pending.incrementAndGet();
+                wheel.newTimeout(t -> cancelExecutor.execute(() -> expire(bucket, tuple.getValue())),
+                        delay, TimeUnit.MILLISECONDS);
+            }
+            if (page.size() < LOAD_PAGE_SIZE) {
+                break;
+            }
+        }
+        log.debug("加载超时订单桶{}，{}个订单", bucket, pending.get() - 1);
+        finishOne(bucket);
+    }
+
+    /**
+     * 到期：取消未支付的订单并归还库存
+     */
+    private void expire(long bucket, String member) {
+        try {
+            String[] parts = member.split(":");
+            Long orderId = Long.valueOf(parts[0]);
+            Long voucherId = Long.valueOf(parts[1]);
+            Long userId = Long.valueOf(parts[2]);
+            //1.数据库：未支付的订单改为已取消，归还数据库库存；已支付或已取消的订单不处理
+            boolean cancelled = voucherOrderService.cancelUnpaidOrder(orderId, voucherId);
+            if (!cancelled) {
+                //上次取消后没来得及归还秒杀引擎的库存就中断了，订单已取消而超时记录还在
+                VoucherOrder order = voucherOrderService.getById(orderId);
+                cancelled = order != null && Integer.valueOf(4).equals(order.getStatus());
+            }
+            //2.秒杀引擎：移除下单记录，归还库存，每个订单只认领一次，避免用户重新下单后又被归还
+            if (cancelled && claimRelease(orderId)) {
+                returnStock(voucherId, userId);
+                log.debug("订单{}超时未支付，已取消", orderId);
+            }
+            stringRedisTemplate.opsForZSet().remove(SECKILL_PAY_TIMEOUT_KEY + bucket, member);
+        } catch (Exception e) {
+            //留在桶中，认领过期后重新加载
+            log.error("取消超时订单{}失败", member, e);
+        } finally {
+            finishOne(bucket);
+        }
+    }
+
+    /**
+     * SET seckill:pay:release:{orderId} nodeId NX EX，有效期覆盖超时记录的有效期
+     */
+    private boolean claimRelease(Long orderId) {
+        return Boolean.TRUE.equals(stringRedisTemplate.opsForValue().setIfAbsent(SECKILL_PAY_RELEASE_KEY + orderId,
+                seckillConsumerRegistry.nodeId(), timeoutSeconds + TimeUnit.DAYS.toSeconds(1), TimeUnit.SECONDS));
+    }
+
+    private void returnStock(Long voucherId, Long userId) {
+        if (seckillEngine.release(voucherId, userId) && seckillSoldOutRegistry.isSoldOut(voucherId)) {
+            //归还了库存，通知所有节点清除售罄标记
+            seckillSoldOutRegistry.reset(voucherId);
+        }
+    }
+
+    /**
+     * 桶中所有订单都处理完后，桶为空则注销，否则释放认领让剩余的订单重新加载
+     */
+    private void finishOne(long bucket) {
+        AtomicInteger pending = loadedBuckets.get(bucket);
+        if (pending == null || pending.decrementAndGet() > 0) {
+            return;
+        }
+        loadedBuckets.remove(bucket);
+        //先注销再检查，注销期间新登记的订单会把桶重新加回来
+        stringRedisTemplate.opsForZSet().remove(SECKILL_PAY_BUCKETS_KEY, String.valueOf(bucket));
+        Long size = stringRedisTemplate.opsForZSet().zCard(SECKILL_PAY_TIMEOUT_KEY + bucket);
+        if (size != null && size > 0) {
+            stringRedisTemplate.opsForZSet().add(SECKILL_PAY_BUCKETS_KEY, String.valueOf(bucket), bucket);
+        }
+        stringRedisTemplate.delete(SECKILL_PAY_CLAIM_KEY + bucket);
+    }
+
+    private long bucketOf(long deadlineMillis) {
+        return deadlineMillis / TimeUnit.SECONDS.toMillis(bucketSeconds);
+    }
+
+    private static String member(VoucherOrder order) {
+        return order.getId() + ":" + order.getVoucherId() + ":" + order.getUserId();
+    }
+}
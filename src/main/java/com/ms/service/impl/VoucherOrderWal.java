@@ -0,0 +1,498 @@
+package com.ms.service.impl;
+
+import com.ms.entity.SeckillVoucher;
+import com.ms.entity.VoucherOrder;
+import com.ms.mapper.VoucherOrderMapper;
+import com.ms.service.ISeckillVoucherService;
+import com.ms.service.IVoucherOrderService;
+import com.ms.utils.RedisIdWorker;
+import com.ms.utils.SeckillOrderResults;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * 秒杀订单本地预写日志
+ * 下单成功后把订单追加到本节点的内存映射文件，文件写满后切换到下一个段 {segment}.wal。
+ * 每条记录定长32字节：orderId、voucherId、userId、校验和、魔数，追加时不分配对象；
+ * 后台线程每flush-millis统一force一次，开启sync时下单线程等到所在的那次force完成才返回（组提交）。
+ * 后台线程每reconcile-seconds对照tb_voucher_order和tb_voucher_order_abandoned检查所有段（包括当前段已刷盘的部分），
+ * 受理超过grace-seconds仍未落库、也没有被放弃的订单视为消息丢失，补写到数据库；
+ * 每个段记录已确认的前缀，下次从这里继续，封存的段全部确认后删除。
+ * 这样redis在XADD之后、订单落库之前重启或丢失消息队列时，已受理的订单也不会丢。
+ * redis丢失库存从数据库恢复之前，先补写本节点这张券的订单，避免恢复的库存里包含这些订单。
+ * 补写时库存已经不足的订单登记为放弃并通知下单结果为失败，不会无限重试。
+ */
+@Slf4j
+@Component
+public class VoucherOrderWal {
+
+    private static final int RECORD_BYTES = 32;
+    private static final int MAGIC = 0x5EC1_0A1D;
+    private static final String SUFFIX = ".wal";
+    private static final int RECONCILE_PAGE_SIZE = 500;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private VoucherOrderMapper voucherOrderMapper;
+
+    @Resource
+    private VoucherOrderGroupWriter voucherOrderGroupWriter;
+
+    @Resource
+    private VoucherOrderTimeoutEngine voucherOrderTimeoutEngine;
+
+    @Resource
+    private VoucherOrderHistory voucherOrderHistory;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private SeckillOrderResults seckillOrderResults;
+
+    @Value("${seckill.wal.enabled:false}")
+    private boolean enabled;
+
+    @Value("${seckill.wal.dir:data/seckill-wal}")
+    private String dir;
+
+    @Value("${seckill.wal.segment-bytes:67108864}")
+    private int segmentBytes;
+
+    @Value("${seckill.wal.flush-millis:5}")
+    private long flushMillis;
+
+    @Value("${seckill.wal.sync:true}")
+    private boolean sync;
+
+    @Value("${seckill.wal.grace-seconds:60}")
+    private long graceSeconds;
+
+    @Value("${seckill.wal.reconcile-seconds:30}")
+    private long reconcileSeconds;
+
+    private final ScheduledExecutorService flushExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    private final ScheduledExecutorService reconcileExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    private final Object flushLock = new Object();
+
+    private final Object reconcileLock = new Object();
+
+    /**
+     * 段号 -> 已确认（已落库或已放弃）的前缀记录数，持有reconcileLock时访问
+     */
+    private final Map<Long, Integer> reconciled = new HashMap<>();
+
+    private long segment;
+
+    /**
+     * 当前段的第一条记录之前已追加的记录数
+     */
+    private long segmentStart;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+
+    /**
+     * 已追加的记录数和已force的记录数
+     */
+    private volatile long appended;
+    private volatile long flushed;
+
+    private volatile boolean running = true;
+
+    @PostConstruct
+    private void init() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        File home = new File(dir);
+        if (!home.isDirectory() && !home.mkdirs()) {
+            throw new IOException("无法创建预写日志目录：" + home.getAbsolutePath());
+        }
+        //启动时已存在的段都是封存的段，新的记录写到下一个段
+        List<Long> segments = listSegments();
+        segment = segments.isEmpty() ? 0 : segments.get(segments.size() - 1);
+        openNextSegment();
+        flushExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                flush();
+            } catch (Exception e) {
+                log.error("预写日志刷盘异常！", e);
+            }
+        }, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+        reconcileExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                reconcile();
+            } catch (Exception e) {
+                log.error("预写日志对账异常！", e);
+            }
+        }, reconcileSeconds, reconcileSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 应用启动完成后补写上次运行留下的段
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void replay() {
+        if (enabled) {
+            reconcileExecutor.execute(() -> {
+                try {
+                    reconcile();
+                } catch (Exception e) {
+                    log.error("预写日志重放异常！", e);
+                }
+            });
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        running = false;
+        if (!enabled) {
+            return;
+        }
+        flushExecutor.shutdown();
+        reconcileExecutor.shutdown();
+        synchronized (this) {
+            buffer.force();
+            closeQuietly(channel);
+        }
+        synchronized (flushLock) {
+            flushLock.notifyAll();
+        }
+    }
+
+    /**
+     * 追加一条已经受理的订单，开启sync时等到刷盘后返回
+     * 预写日志是第二层保障，写入失败只记录日志，不影响下单
+     */
+    public void append(long orderId, long voucherId, long userId) {
+        if (!enabled) {
+            return;
+        }
+        long seq;
+        try {
+            synchronized (this) {
+                if (buffer.remaining() < RECORD_BYTES) {
+                    rotate();
+                }
+                buffer.putLong(orderId).putLong(voucherId).putLong(userId)
+                        .putInt(checksum(orderId, voucherId, userId))
+                        //魔数最后写，记录没写完时读取到这里停止
+                        .putInt(MAGIC);
+                seq = ++appended;
+            }
+        } catch (Exception e) {
+            log.error("订单{}写入预写日志失败", orderId, e);
+            return;
+        }
+        if (sync) {
+            awaitFlushed(seq);
+        }
+    }
+
+    private void awaitFlushed(long seq) {
+        if (flushed >= seq) {
+            return;
+        }
+        synchronized (flushLock) {
+            while (flushed < seq && running) {
+                try {
+                    flushLock.wait(flushMillis * 4);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void flush() {
+        long target = appended;
+        if (target == flushed) {
+            return;
+        }
+        MappedByteBuffer current;
+        synchronized (this) {
+            current = buffer;
+        }
+        //切换段时旧段已经force过，这里只需要force当前段
+        current.force();
+        synchronized (flushLock) {
+            flushed = target;
+            flushLock.notifyAll();
+        }
+    }
+
+    /**
+     * 当前段写满，force后切换到下一个段，调用方持有锁
+     */
+    private void rotate() throws IOException {
+        buffer.force();
+        closeQuietly(channel);
+        openNextSegment();
+    }
+
+    private void openNextSegment() throws IOException {
+        segment++;
+        RandomAccessFile file = new RandomAccessFile(segmentFile(segment), "rw");
+        channel = file.getChannel();
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes - segmentBytes % RECORD_BYTES);
+        segmentStart = appended;
+    }
+
+    /**
+     * 对账所有段中受理超过grace-seconds的订单，封存的段全部确认后删除
+     */
+    private void reconcile() throws IOException {
+        //订单id中的时间是本地时间
+        LocalDateTime cutoff = LocalDateTime.now().minusSeconds(graceSeconds);
+        synchronized (reconcileLock) {
+            long current;
+            long currentFlushed;
+            synchronized (this) {
+                current = segment;
+                currentFlushed = Math.max(0, flushed - segmentStart);
+            }
+            for (Long s : listSegments()) {
+                boolean active = s == current;
+                File file = segmentFile(s);
+                //当前段只读已经刷盘的记录
+                List<VoucherOrder> orders = read(file, active ? currentFlushed : Long.MAX_VALUE);
+                int from = reconciled.getOrDefault(s, 0);
+                int done = from;
+                int replayed = 0;
+                while (done < orders.size()) {
+                    //订单id按受理时间递增，遇到还在grace-seconds内的订单就停止
+                    int end = done;
+                    while (end < orders.size() && end - done < RECONCILE_PAGE_SIZE
+                            && RedisIdWorker.timeOf(orders.get(end).getId()).isBefore(cutoff)) {
+                        end++;
+                    }
+                    if (end == done) {
+                        break;
+                    }
+                    try {
+                        replayed += replay(orders.subList(done, end));
+                    } catch (Exception e) {
+                        log.error("预写日志段{}补写订单失败，保留到下次对账", file.getName(), e);
+                        break;
+                    }
+                    done = end;
+                }
+                if (!active && done == orders.size()) {
+                    reconciled.remove(s);
+                    if (!file.delete()) {
+                        log.warn("预写日志段{}删除失败", file.getName());
+                    }
+                    log.info("预写日志段{}对账完成，{}条订单，补写{}条", file.getName(), orders.size(), replayed);
+                } else {
+                    reconciled.put(s, done);
+                }
+            }
+        }
+    }
+
+    /**
+     * 立即补写本节点日志中这张券还没有落库的订单，不等待grace-seconds
+     * redis丢失库存、从数据库恢复一人一单和库存之前调用
+     * @return 补写的订单数
+     */
+    public int reconcileVoucher(Long voucherId) throws IOException {
+        if (!enabled) {
+            return 0;
+        }
+        synchronized (reconcileLock) {
+            long current;
+            long currentFlushed;
+            synchronized (this) {
+                current = segment;
+                currentFlushed = Math.max(0, flushed - segmentStart);
+            }
+            int replayed = 0;
+            for (Long s : listSegments()) {
+                List<VoucherOrder> orders = read(segmentFile(s), s == current ? currentFlushed : Long.MAX_VALUE);
+                List<VoucherOrder> matched = orders.subList(reconciled.getOrDefault(s, 0), orders.size()).stream()
+                        .filter(o -> voucherId.equals(o.getVoucherId()))
+                        .collect(Collectors.toList());
+                for (int i = 0; i < matched.size(); i += RECONCILE_PAGE_SIZE) {
+                    replayed += replay(matched.subList(i, Math.min(i + RECONCILE_PAGE_SIZE, matched.size())));
+                }
+            }
+            if (replayed > 0) {
+                log.warn("恢复秒杀券{}之前，预写日志补写了{}条订单", voucherId, replayed);
+            }
+            return replayed;
+        }
+    }
+
+    /**
+     * 补写一页订单中既没有落库也没有放弃的订单
+     * @return 补写的订单数
+     */
+    private int replay(List<VoucherOrder> page) {
+        Set<Long> ids = page.stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+        Set<Long> existing = voucherOrderService.query().select("id").in("id", ids).list().stream()
+                .map(VoucherOrder::getId).collect(Collectors.toSet());
+        existing.addAll(voucherOrderMapper.selectAbandonedIds(ids));
+        //热表中没有的，再确认没有被归档到冷表
+        List<VoucherOrder> missing = page.stream()
+                .filter(o -> !existing.contains(o.getId()))
+                .filter(o -> voucherOrderMapper.selectByIdWithArchive(o.getId()) == null)
+                .collect(Collectors.toList());
+        if (missing.isEmpty()) {
+            return 0;
+        }
+        //和消息队列走同一个组提交，写入是幂等的
+        try {
+            return write(missing);
+        } catch (RuntimeException e) {
+            log.warn("预写日志整批补写失败，按券逐个补写", e);
+        }
+        //库存可能只够其中一部分订单，失败的券再逐个订单补写，库存卖完的订单登记为放弃
+        int persisted = 0;
+        Map<Long, List<VoucherOrder>> byVoucher = missing.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId));
+        for (List<VoucherOrder> orders : byVoucher.values()) {
+            try {
+                persisted += write(orders);
+                continue;
+            } catch (RuntimeException e) {
+                log.warn("券{}的订单补写失败，逐个订单补写", orders.get(0).getVoucherId(), e);
+            }
+            for (VoucherOrder order : orders) {
+                try {
+                    persisted += write(Collections.singletonList(order));
+                } catch (RuntimeException e) {
+                    if (!isSoldOut(order.getVoucherId())) {
+                        throw e;
+                    }
+                    abandon(Collections.singletonList(order), "预写日志补写时库存不足");
+                }
+            }
+        }
+        return persisted;
+    }
+
+    private int write(List<VoucherOrder> orders) {
+        Set<Long> duplicates = voucherOrderGroupWriter.write(orders).join();
+        List<VoucherOrder> persisted = new ArrayList<>(orders.size());
+        List<VoucherOrder> rejected = new ArrayList<>();
+        for (VoucherOrder order : orders) {
+            (duplicates.contains(order.getId()) ? rejected : persisted).add(order);
+        }
+        //用户已经有另一个订单，登记为放弃，下次对账不再尝试
+        if (!rejected.isEmpty()) {
+            voucherOrderMapper.insertAbandoned(rejected, "预写日志补写时重复下单");
+        }
+        if (!persisted.isEmpty()) {
+            voucherOrderTimeoutEngine.schedule(persisted);
+            voucherOrderHistory.record(persisted);
+            log.warn("预写日志补写{}条消息队列中丢失的订单", persisted.size());
+        }
+        return persisted.size();
+    }
+
+    /**
+     * 数据库中的库存已经卖完，补写不可能成功；查询失败时抛出异常，保留到下次对账
+     */
+    private boolean isSoldOut(Long voucherId) {
+        SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+        return voucher == null || voucher.getStock() <= 0;
+    }
+
+    /**
+     * 登记放弃的订单并通知下单结果为失败
+     */
+    private void abandon(List<VoucherOrder> orders, String reason) {
+        voucherOrderMapper.insertAbandoned(orders, reason);
+        log.error("预写日志中{}条订单补写失败，已放弃：{}", orders.size(), reason);
+        try {
+            seckillOrderResults.publish(orders, o -> SeckillOrderResults.FAILED);
+        } catch (Exception e) {
+            log.error("发布订单结果失败", e);
+        }
+    }
+
+    /**
+     * 读取段中的记录
+     * @param limit 最多读取的记录数
+     */
+    private List<VoucherOrder> read(File file, long limit) throws IOException {
+        List<VoucherOrder> orders = new ArrayList<>();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel ch = raf.getChannel()) {
+            MappedByteBuffer in = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            while (in.remaining() >= RECORD_BYTES && orders.size() < limit) {
+                long orderId = in.getLong();
+                long voucherId = in.getLong();
+                long userId = in.getLong();
+                int checksum = in.getInt();
+                if (in.getInt() != MAGIC || checksum != checksum(orderId, voucherId, userId)) {
+                    //段的末尾，或者宕机时没写完的记录
+                    break;
+                }
+                VoucherOrder order = new VoucherOrder();
+                order.setId(orderId);
+                order.setVoucherId(voucherId);
+                order.setUserId(userId);
+                orders.add(order);
+            }
+        }
+        return orders;
+    }
+
+    private List<Long> listSegments() {
+        File[] files = new File(dir).listFiles((d, name) -> name.endsWith(SUFFIX));
+        if (files == null) {
+            return Collections.emptyList();
+        }
+        List<Long> segments = new ArrayList<>(files.length);
+        for (File f : files) {
+            try {
+                segments.add(Long.parseLong(f.getName().substring(0, f.getName().length() - SUFFIX.length())));
+            } catch (NumberFormatException e) {
+                log.warn("忽略无法识别的预写日志文件{}", f.getName());
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private File segmentFile(long s) {
+        return new File(dir, String.format("%019d%s", s, SUFFIX));
+    }
+
+    private static int checksum(long orderId, long voucherId, long userId) {
+        long h = orderId * 0x9E3779B97F4A7C15L ^ voucherId * 0xC2B2AE3D27D4EB4FL ^ userId * 0x165667B19E3779F9L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static void closeQuietly(FileChannel ch) {
+        try {
+            ch.close();
+        } catch (IOException e) {
+            log.warn("关闭预写日志段失败", e);
+        }
+    }
+}
@@ -2,11 +2,17 @@ package com.ms.service.impl;
 
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.ms.dto.Result;
+import com.ms.dto.SeckillLimitDTO;
 import com.ms.entity.SeckillVoucher;
 import com.ms.entity.Voucher;
 import com.ms.mapper.VoucherMapper;
 import com.ms.service.ISeckillVoucherService;
 import com.ms.service.IVoucherService;
+import com.ms.service.SeckillEngine;
+import com.ms.utils.SeckillRateLimiter;
+import com.ms.utils.SeckillSoldOutRegistry;
+import com.ms.utils.SeckillStockLeases;
+import com.ms.utils.SeckillWaitingRoom;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
@@ -14,8 +20,6 @@ import org.springframework.transaction.annotation.Transactional;
 import javax.annotation.Resource;
 import java.util.List;
 
-import static com.ms.utils.RedisConstants.SECKILL_STOCK_KEY;
-
 /**
  * @author: Omerta
  * @create-date: 2023/5/24 11:34
@@ -27,6 +31,18 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     private ISeckillVoucherService seckillVoucherService;
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillSoldOutRegistry seckillSoldOutRegistry;
+    @Resource
+    private SeckillRateLimiter seckillRateLimiter;
+    @Resource
+    private SeckillLifecycleScheduler seckillLifecycleScheduler;
+    @Resource
+    private SeckillStockLeases seckillStockLeases;
+    @Resource
+    private SeckillWaitingRoom seckillWaitingRoom;
+    @Resource
+    private SeckillEngine seckillEngine;
 
     @Override
     public Result queryVoucherOfShop(Long shopId) {
@@ -39,6 +55,11 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Override
     @Transactional
     public void addSeckillVoucher(Voucher voucher) {
+        // 开启等候室需要配置令牌密钥，先校验，避免只写入一半配置
+        Integer rate = voucher.getWaitingRoomRate();
+        if (rate != null && rate > 0 && !seckillWaitingRoom.isAvailable()) {
+            throw new IllegalStateException("未配置 seckill.waiting-room.secret，不能开启等候室");
+        }
         // 保存优惠券
         save(voucher);
         // 保存秒杀信息
@@ -47,8 +68,60 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setStock(voucher.getStock());
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
+        // 超大秒杀券由各节点租用库存在本地售卖，热点券可以拆成多个分片；
+        // 配置保存在数据库中，预热时写入redis，存储被清空后也能恢复
+        Integer leaseChunk = voucher.getStockLeaseChunk();
+        Integer shards = voucher.getStockShards();
+        seckillVoucher.setStockShards(1);
+        seckillVoucher.setStockLeaseChunk(0);
+        seckillVoucher.setStockLeasePartitions(0);
+        if (leaseChunk != null && leaseChunk > 0) {
+            seckillVoucher.setStockLeaseChunk(leaseChunk);
+            seckillVoucher.setStockLeasePartitions(seckillStockLeases.defaultPartitions());
+        } else if (shards != null && shards > 1) {
+            seckillVoucher.setStockShards(shards);
+        }
         seckillVoucherService.save(seckillVoucher);
-        // 保存秒杀库存到Redis中
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucher.getId(), voucher.getStock().toString());
+        // 开抢时流量过大的券先进入等候室排队
+        Integer waitingRoomRate = voucher.getWaitingRoomRate();
+        if (waitingRoomRate != null && waitingRoomRate > 0) {
+            seckillWaitingRoom.saveConfig(voucher.getId(), waitingRoomRate);
+        }
+        // 即将开始的活动立即预热库存和时间窗口，其余由定时任务在开始前预热
+        seckillLifecycleScheduler.warmUpIfDue(seckillVoucher);
+    }
+
+    @Override
+    @Transactional
+    public Result addSeckillStock(Long voucherId, Integer count) {
+        if (count == null || count <= 0) {
+            return Result.fail("补充的库存必须大于0");
+        }
+        // 1.更新数据库库存
+        boolean isUpdate = seckillVoucherService.update()
+                .setSql("stock = stock + " + count).eq("voucher_id", voucherId).update();
+        if (!isUpdate) {
+            return Result.fail("秒杀券不存在");
+        }
+        // 2.补充秒杀引擎的库存
+        seckillEngine.addStock(voucherId, count);
+        // 3.清除所有节点的售罄标记
+        seckillSoldOutRegistry.reset(voucherId);
+        return Result.ok();
+    }
+
+    @Override
+    public Result updateSeckillLimit(Long voucherId, SeckillLimitDTO limit) {
+        if (seckillVoucherService.getById(voucherId) == null) {
+            return Result.fail("秒杀券不存在");
+        }
+        seckillRateLimiter.saveConfig(voucherId, limit);
+        return Result.ok();
+    }
+
+    @Override
+    public Result rehydrateSeckill() {
+        // 库存丢失的券从数据库恢复库存和一人一单
+        return Result.ok(seckillLifecycleScheduler.rehydrate());
     }
 }
@@ -0,0 +1,40 @@
+package com.ms.utils;
+
+import com.ms.dto.UserDTO;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * 运维接口的拦截器，只放行配置的管理员用户
+ */
+@Slf4j
+public class AdminInterceptor implements HandlerInterceptor {
+
+    private final Set<Long> adminIds;
+
+    public AdminInterceptor(Collection<Long> adminIds) {
+        this.adminIds = new HashSet<>(adminIds);
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        UserDTO user = UserHolder.getUser();
+        if(user == null){
+            response.setStatus(401);
+            return false;
+        }
+        if(!adminIds.contains(user.getId())){
+            log.warn("用户{}访问运维接口{}被拒绝", user.getId(), request.getRequestURI());
+            response.setStatus(403);
+            return false;
+        }
+        return true;
+    }
+
+}
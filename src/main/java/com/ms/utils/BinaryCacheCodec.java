@@ -0,0 +1,488 @@
+package com.ms.utils;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 紧凑的二进制编解码
+ * 首字节是格式：RAW 未压缩，DEFLATED 压缩（其后是原始长度），其它值按改造前的JSON解析，兼容redis中已有的缓存。
+ * 每个值以一个字节的类型标记开头，整数用zigzag变长编码，字符串是长度+UTF-8。
+ * 对象只写字段值，字段按名称排序；类名在一个值中第一次出现时写一次，同时写字段结构的哈希，之后只写序号，
+ * 所以List<ShopType>中类名只出现一次。类结构变化后旧缓存解码失败，由调用方按未命中处理。
+ * 只解码trusted-packages下的类。
+ */
+@Component
+@ConditionalOnProperty(name = "cache.codec.type", havingValue = "binary", matchIfMissing = true)
+public class BinaryCacheCodec implements CacheCodec {
+
+    private static final byte RAW = (byte) 0xB1;
+    private static final byte DEFLATED = (byte) 0xB2;
+
+    private static final byte NULL = 0;
+    private static final byte TRUE = 1;
+    private static final byte FALSE = 2;
+    private static final byte INT = 3;
+    private static final byte LONG = 4;
+    private static final byte DOUBLE = 5;
+    private static final byte STRING = 6;
+    private static final byte DATE_TIME = 7;
+    private static final byte DATE = 8;
+    private static final byte DECIMAL = 9;
+    private static final byte LIST = 10;
+    private static final byte SET = 11;
+    private static final byte MAP = 12;
+    private static final byte ENUM = 13;
+    private static final byte BEAN = 14;
+    private static final byte BEAN_REF = 15;
+
+    @Value("${cache.codec.compress-threshold:1024}")
+    private int compressThreshold;
+
+    @Value("${cache.codec.trusted-packages:com.ms.}")
+    private String[] trustedPackages;
+
+    private final Map<Class<?>, Schema> schemas = new ConcurrentHashMap<>();
+
+    private final Map<String, Class<?>> classes = new ConcurrentHashMap<>();
+
+    public BinaryCacheCodec() {
+    }
+
+    public BinaryCacheCodec(int compressThreshold, String... trustedPackages) {
+        this.compressThreshold = compressThreshold;
+        this.trustedPackages = trustedPackages;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        Output out = new Output(128);
+        out.write(RAW);
+        writeValue(out, value, new IdentityHashMap<>());
+        if (compressThreshold <= 0 || out.size <= compressThreshold) {
+            return out.toByteArray();
+        }
+        //超过阈值的值压缩，压缩后没有变小就不压缩
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(out.buf, 1, out.size - 1);
+            deflater.finish();
+            Output zipped = new Output(out.size / 2 + 16);
+            zipped.write(DEFLATED);
+            zipped.writeVarLong(out.size - 1);
+            while (!deflater.finished()) {
+                zipped.ensure(256);
+                zipped.size += deflater.deflate(zipped.buf, zipped.size, zipped.buf.length - zipped.size);
+            }
+            return zipped.size < out.size ? zipped.toByteArray() : out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public boolean isCurrentFormat(byte[] bytes) {
+        return bytes.length > 0 && (bytes[0] == RAW || bytes[0] == DEFLATED);
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        if (bytes.length == 0 || (bytes[0] != RAW && bytes[0] != DEFLATED)) {
+            return JsonCacheCodec.fromJson(bytes, type);
+        }
+        Input in = new Input(bytes, 1);
+        if (bytes[0] == DEFLATED) {
+            in = new Input(inflate(bytes, in), 0);
+        }
+        return type.cast(coerce(readValue(in, new ArrayList<>()), type));
+    }
+
+    private byte[] inflate(byte[] bytes, Input in) {
+        int length = (int) in.readVarLong();
+        byte[] raw = new byte[length];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes, in.pos, bytes.length - in.pos);
+            int n = 0;
+            while (n < length && !inflater.finished()) {
+                int read = inflater.inflate(raw, n, length - n);
+                if (read == 0 && inflater.needsInput()) {
+                    break;
+                }
+                n += read;
+            }
+            if (n != length) {
+                throw new IllegalStateException("缓存数据不完整");
+            }
+            return raw;
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("缓存数据解压失败", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private void writeValue(Output out, Object v, Map<Class<?>, Integer> written) {
+        if (v == null) {
+            out.write(NULL);
+        } else if (v instanceof String) {
+            out.write(STRING);
+            out.writeString((String) v);
+        } else if (v instanceof Long) {
+            out.write(LONG);
+            out.writeVarLong(zigzag((Long) v));
+        } else if (v instanceof Integer || v instanceof Short || v instanceof Byte) {
+            out.write(INT);
+            out.writeVarLong(zigzag(((Number) v).longValue()));
+        } else if (v instanceof Double || v instanceof Float) {
+            out.write(DOUBLE);
+            out.writeLong(Double.doubleToRawLongBits(((Number) v).doubleValue()));
+        } else if (v instanceof Boolean) {
+            out.write((Boolean) v ? TRUE : FALSE);
+        } else if (v instanceof LocalDateTime) {
+            LocalDateTime t = (LocalDateTime) v;
+            out.write(DATE_TIME);
+            out.writeVarLong(zigzag(t.toEpochSecond(ZoneOffset.UTC)));
+            out.writeVarLong(t.getNano());
+        } else if (v instanceof LocalDate) {
+            out.write(DATE);
+            out.writeVarLong(zigzag(((LocalDate) v).toEpochDay()));
+        } else if (v instanceof BigDecimal) {
+            out.write(DECIMAL);
+            out.writeString(v.toString());
+        } else if (v instanceof Collection) {
+            Collection<?> c = (Collection<?>) v;
+            out.write(v instanceof Set ? SET : LIST);
+            out.writeVarLong(c.size());
+            for (Object e : c) {
+                writeValue(out, e, written);
+            }
+        } else if (v instanceof Map) {
+            Map<?, ?> m = (Map<?, ?>) v;
+            out.write(MAP);
+            out.writeVarLong(m.size());
+            for (Map.Entry<?, ?> e : m.entrySet()) {
+                writeValue(out, e.getKey(), written);
+                writeValue(out, e.getValue(), written);
+            }
+        } else if (v instanceof Enum) {
+            out.write(ENUM);
+            out.writeString(((Enum<?>) v).getDeclaringClass().getName());
+            out.writeString(((Enum<?>) v).name());
+        } else {
+            Schema schema = schemaOf(v.getClass());
+            Integer ref = written.get(schema.type);
+            if (ref == null) {
+                written.put(schema.type, written.size());
+                out.write(BEAN);
+                out.writeString(schema.type.getName());
+                out.writeInt(schema.hash);
+            } else {
+                out.write(BEAN_REF);
+                out.writeVarLong(ref);
+            }
+            try {
+                for (Field f : schema.fields) {
+                    writeValue(out, f.get(v), written);
+                }
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private Object readValue(Input in, List<Schema> read) {
+        byte tag = in.read();
+        switch (tag) {
+            case NULL:
+                return null;
+            case TRUE:
+                return Boolean.TRUE;
+            case FALSE:
+                return Boolean.FALSE;
+            case INT:
+                return (int) unzigzag(in.readVarLong());
+            case LONG:
+                return unzigzag(in.readVarLong());
+            case DOUBLE:
+                return Double.longBitsToDouble(in.readLong());
+            case STRING:
+                return in.readString();
+            case DATE_TIME:
+                long seconds = unzigzag(in.readVarLong());
+                return LocalDateTime.ofEpochSecond(seconds, (int) in.readVarLong(), ZoneOffset.UTC);
+            case DATE:
+                return LocalDate.ofEpochDay(unzigzag(in.readVarLong()));
+            case DECIMAL:
+                return new BigDecimal(in.readString());
+            case LIST:
+            case SET: {
+                int size = (int) in.readVarLong();
+                Collection<Object> c = tag == LIST ? new ArrayList<>(size) : new LinkedHashSet<>(size * 4 / 3 + 1);
+                for (int i = 0; i < size; i++) {
+                    c.add(readValue(in, read));
+                }
+                return c;
+            }
+            case MAP: {
+                int size = (int) in.readVarLong();
+                Map<Object, Object> m = new LinkedHashMap<>(size * 4 / 3 + 1);
+                for (int i = 0; i < size; i++) {
+                    m.put(readValue(in, read), readValue(in, read));
+                }
+                return m;
+            }
+            case ENUM:
+                return enumOf(classOf(in.readString()), in.readString());
+            case BEAN: {
+                Schema schema = schemaOf(classOf(in.readString()));
+                if (in.readInt() != schema.hash) {
+                    throw new IllegalStateException("缓存的" + schema.type.getName() + "与当前的类结构不一致");
+                }
+                read.add(schema);
+                return readBean(in, schema, read);
+            }
+            case BEAN_REF:
+                return readBean(in, read.get((int) in.readVarLong()), read);
+            default:
+                throw new IllegalStateException("无法识别的缓存数据类型：" + tag);
+        }
+    }
+
+    private Object readBean(Input in, Schema schema, List<Schema> read) {
+        try {
+            Object bean = schema.constructor.newInstance();
+            for (Field f : schema.fields) {
+                f.set(bean, coerce(readValue(in, read), f.getType()));
+            }
+            return bean;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("无法创建" + schema.type.getName(), e);
+        }
+    }
+
+    /**
+     * 整数和小数按字段声明的类型还原
+     */
+    private static Object coerce(Object v, Class<?> type) {
+        if (v == null || type.isInstance(v)) {
+            return v;
+        }
+        if (v instanceof Integer) {
+            int i = (Integer) v;
+            if (type == short.class || type == Short.class) {
+                return (short) i;
+            }
+            if (type == byte.class || type == Byte.class) {
+                return (byte) i;
+            }
+            if (type == int.class) {
+                return i;
+            }
+        }
+        if (v instanceof Double && (type == float.class || type == Float.class)) {
+            return ((Double) v).floatValue();
+        }
+        if (v instanceof Long && type == long.class || v instanceof Double && type == double.class
+                || v instanceof Boolean && type == boolean.class) {
+            return v;
+        }
+        throw new IllegalStateException("缓存的" + v.getClass().getName() + "不能转换为" + type.getName());
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Object enumOf(Class<?> type, String name) {
+        return Enum.valueOf((Class<Enum>) type, name);
+    }
+
+    private Class<?> classOf(String name) {
+        Class<?> type = classes.get(name);
+        if (type != null) {
+            return type;
+        }
+        if (Arrays.stream(trustedPackages).noneMatch(name::startsWith)) {
+            throw new IllegalStateException("不允许从缓存中解码" + name);
+        }
+        try {
+            type = Class.forName(name, false, BinaryCacheCodec.class.getClassLoader());
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("缓存的类" + name + "不存在", e);
+        }
+        classes.put(name, type);
+        return type;
+    }
+
+    private Schema schemaOf(Class<?> type) {
+        Schema schema = schemas.get(type);
+        return schema != null ? schema : schemas.computeIfAbsent(type, Schema::new);
+    }
+
+    private static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /**
+     * 一个类的字段结构：包括父类的非静态、非transient字段，按名称排序
+     */
+    private static class Schema {
+        private final Class<?> type;
+        private final Constructor<?> constructor;
+        private final Field[] fields;
+        private final int hash;
+
+        private Schema(Class<?> type) {
+            this.type = type;
+            try {
+                this.constructor = type.getDeclaredConstructor();
+                this.constructor.setAccessible(true);
+            } catch (NoSuchMethodException e) {
+                throw new IllegalArgumentException(type.getName() + "没有无参构造函数，不能写入缓存", e);
+            }
+            List<Field> list = new ArrayList<>();
+            for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (Field f : c.getDeclaredFields()) {
+                    int m = f.getModifiers();
+                    if (!Modifier.isStatic(m) && !Modifier.isTransient(m)) {
+                        f.setAccessible(true);
+                        list.add(f);
+                    }
+                }
+            }
+            list.sort(Comparator.comparing(Field::getName));
+            this.fields = list.toArray(new Field[0]);
+            int h = 1;
+            for (Field f : fields) {
+                h = 31 * h + (f.getName() + ":" + f.getType().getName()).hashCode();
+            }
+            this.hash = h;
+        }
+    }
+
+    private static class Output {
+        private byte[] buf;
+        private int size;
+
+        private Output(int capacity) {
+            buf = new byte[capacity];
+        }
+
+        private void ensure(int n) {
+            if (size + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + n));
+            }
+        }
+
+        private void write(byte b) {
+            ensure(1);
+            buf[size++] = b;
+        }
+
+        private void writeVarLong(long v) {
+            ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                buf[size++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[size++] = (byte) v;
+        }
+
+        private void writeInt(int v) {
+            ensure(4);
+            for (int i = 24; i >= 0; i -= 8) {
+                buf[size++] = (byte) (v >>> i);
+            }
+        }
+
+        private void writeLong(long v) {
+            ensure(8);
+            for (int i = 56; i >= 0; i -= 8) {
+                buf[size++] = (byte) (v >>> i);
+            }
+        }
+
+        private void writeString(String s) {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(b.length);
+            ensure(b.length);
+            System.arraycopy(b, 0, buf, size, b.length);
+            size += b.length;
+        }
+
+        private byte[] toByteArray() {
+            return Arrays.copyOf(buf, size);
+        }
+    }
+
+    private static class Input {
+        private final byte[] buf;
+        private int pos;
+
+        private Input(byte[] buf, int pos) {
+            this.buf = buf;
+            this.pos = pos;
+        }
+
+        private byte read() {
+            if (pos >= buf.length) {
+                throw new IllegalStateException("缓存数据不完整");
+            }
+            return buf[pos++];
+        }
+
+        private long readVarLong() {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = read();
+                v |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return v;
+                }
+            }
+            throw new IllegalStateException("缓存数据损坏");
+        }
+
+        private int readInt() {
+            int v = 0;
+            for (int i = 0; i < 4; i++) {
+                v = (v << 8) | (read() & 0xFF);
+            }
+            return v;
+        }
+
+        private long readLong() {
+            long v = 0;
+            for (int i = 0; i < 8; i++) {
+                v = (v << 8) | (read() & 0xFF);
+            }
+            return v;
+        }
+
+        private String readString() {
+            int n = (int) readVarLong();
+            if (n < 0 || pos + n > buf.length) {
+                throw new IllegalStateException("缓存数据不完整");
+            }
+            String s = new String(buf, pos, n, StandardCharsets.UTF_8);
+            pos += n;
+            return s;
+        }
+    }
+}
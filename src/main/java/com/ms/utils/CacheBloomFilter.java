@@ -0,0 +1,344 @@
+package com.ms.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BiFunction;
+
+import static com.ms.utils.RedisConstants.CACHE_BLOOM_ADDED_KEY;
+import static com.ms.utils.RedisConstants.CACHE_BLOOM_CHANNEL;
+
+/**
+ * 缓存穿透的布隆过滤器
+ * 每种实体按缓存key前缀注册一个进程内的过滤器，启动时和每隔rebuild-minutes从数据库分页扫描全部id重建；
+ * 新增实体后调用add，通过redis发布订阅通知所有节点，同时记入redis的zset cache:bloom:added:{prefix}（分数为加入时间）；
+ * 发布订阅的消息可能丢失（订阅断线重连、主从切换），各节点每隔sync-seconds用ZRANGEBYSCORE读取上次同步以来新增的id
+ * 补进本地过滤器，丢失通知的id最多在一个同步周期内被误拒。zset只保留最近两个重建周期内新增的id，
+ * 更早的已经包含在各节点重建的过滤器里。
+ * 查询只判断本地过滤器，判断不存在就直接返回，不访问redis、缓存和数据库；过滤器还没建好时全部放行。
+ * 位数组按期望误判率fpp计算，不超过max-bytes，超出时误判率升高。
+ */
+@Slf4j
+@Component
+public class CacheBloomFilter implements MessageListener {
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final RedisMessageListenerContainer listenerContainer;
+
+    private final MeterRegistry meterRegistry;
+
+    @Value("${cache.bloom.enabled:true}")
+    private boolean enabled;
+
+    @Value("${cache.bloom.fpp:0.01}")
+    private double fpp;
+
+    @Value("${cache.bloom.max-bytes:8388608}")
+    private long maxBytes;
+
+    @Value("${cache.bloom.scan-batch:5000}")
+    private int scanBatch;
+
+    @Value("${cache.bloom.rebuild-minutes:60}")
+    private long rebuildMinutes;
+
+    @Value("${cache.bloom.sync-seconds:5}")
+    private long syncSeconds;
+
+    private final Map<String, Filter> filters = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService rebuildExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    private final ScheduledExecutorService syncExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    public CacheBloomFilter(StringRedisTemplate stringRedisTemplate,
+                            RedisMessageListenerContainer listenerContainer,
+                            MeterRegistry meterRegistry) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.listenerContainer = listenerContainer;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        listenerContainer.addMessageListener(this, new ChannelTopic(CACHE_BLOOM_CHANNEL));
+        rebuildExecutor.scheduleWithFixedDelay(this::rebuildAll, rebuildMinutes, rebuildMinutes, TimeUnit.MINUTES);
+        syncExecutor.scheduleWithFixedDelay(this::syncAll, syncSeconds, syncSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        rebuildExecutor.shutdown();
+        syncExecutor.shutdown();
+    }
+
+    /**
+     * 应用启动完成后建立所有过滤器
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void build() {
+        if (enabled) {
+            rebuildExecutor.execute(this::rebuildAll);
+        }
+    }
+
+    /**
+     * 注册一种实体
+     * @param keyPrefix 缓存key前缀
+     * @param scanner (上一页最大id, 页大小) -> 按id升序的下一页id
+     */
+    public void register(String keyPrefix, BiFunction<Long, Integer, List<Long>> scanner) {
+        filters.put(keyPrefix, new Filter(scanner,
+                meterRegistry.counter("cache.bloom.rejected", "prefix", keyPrefix)));
+    }
+
+    /**
+     * 判断id是否可能存在，没有注册过滤器的前缀都返回true
+     */
+    public boolean mightContain(String keyPrefix, Object id) {
+        Filter filter = filters.get(keyPrefix);
+        if (!enabled || filter == null) {
+            return true;
+        }
+        Bits bits = filter.bits;
+        if (bits == null || bits.mightContain(hash(id))) {
+            return true;
+        }
+        filter.rejected.increment();
+        return false;
+    }
+
+    /**
+     * 新增实体后调用，加入本节点的过滤器，记入最近新增的id并通知其它节点
+     */
+    public void add(String keyPrefix, Object id) {
+        if (!enabled || !filters.containsKey(keyPrefix)) {
+            return;
+        }
+        addLocal(keyPrefix, hash(id));
+        stringRedisTemplate.opsForZSet().add(CACHE_BLOOM_ADDED_KEY + keyPrefix, id.toString(), System.currentTimeMillis());
+        stringRedisTemplate.convertAndSend(CACHE_BLOOM_CHANNEL, keyPrefix + id);
+    }
+
+    private void addLocal(String keyPrefix, long h) {
+        Filter filter = filters.get(keyPrefix);
+        if (filter == null) {
+            return;
+        }
+        synchronized (filter) {
+            if (filter.bits != null) {
+                filter.bits.add(h);
+            }
+            //正在重建，新过滤器建好后补上
+            if (filter.pending != null) {
+                filter.pending.add(h);
+            }
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String key = new String(message.getBody(), StandardCharsets.UTF_8);
+        int i = key.lastIndexOf(':') + 1;
+        addLocal(key.substring(0, i), hash(key.substring(i)));
+    }
+
+    private void syncAll() {
+        for (Map.Entry<String, Filter> entry : filters.entrySet()) {
+            try {
+                sync(entry.getKey(), entry.getValue());
+            } catch (Exception e) {
+                log.warn("同步布隆过滤器{}新增的id异常！", entry.getKey(), e);
+            }
+        }
+    }
+
+    /**
+     * ZRANGEBYSCORE cache:bloom:added:{prefix} from +inf，分数是写入节点的时间，
+     * 多读一个同步周期，覆盖节点之间的时钟偏差和同步期间写入的id
+     */
+    private void sync(String keyPrefix, Filter filter) {
+        long now = System.currentTimeMillis();
+        long from = filter.lastSync == 0 ? 0 : filter.lastSync - TimeUnit.SECONDS.toMillis(syncSeconds);
+        Set<String> ids = stringRedisTemplate.opsForZSet()
+                .rangeByScore(CACHE_BLOOM_ADDED_KEY + keyPrefix, from, Double.POSITIVE_INFINITY);
+        if (ids != null) {
+            for (String id : ids) {
+                addLocal(keyPrefix, hash(id));
+            }
+        }
+        filter.lastSync = now;
+    }
+
+    private void rebuildAll() {
+        for (Map.Entry<String, Filter> entry : filters.entrySet()) {
+            try {
+                rebuild(entry.getKey(), entry.getValue());
+            } catch (Exception e) {
+                log.error("布隆过滤器{}重建异常！", entry.getKey(), e);
+            }
+        }
+    }
+
+    /**
+     * 扫描全部id建立新的过滤器后替换，扫描期间新增的id先记下来
+     */
+    private void rebuild(String keyPrefix, Filter filter) {
+        //两个重建周期之前新增的id已经包含在所有节点重建的过滤器里
+        long expired = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(rebuildMinutes * 2);
+        stringRedisTemplate.opsForZSet().removeRangeByScore(CACHE_BLOOM_ADDED_KEY + keyPrefix, 0, expired);
+        synchronized (filter) {
+            filter.pending = new ArrayList<>();
+        }
+        List<Long> hashes = new ArrayList<>();
+        try {
+            long last = 0;
+            while (true) {
+                List<Long> ids = filter.scanner.apply(last, scanBatch);
+                for (Long id : ids) {
+                    hashes.add(hash(id));
+                }
+                if (ids.size() < scanBatch) {
+                    break;
+                }
+                last = ids.get(ids.size() - 1);
+            }
+        } catch (RuntimeException e) {
+            synchronized (filter) {
+                filter.pending = null;
+            }
+            throw e;
+        }
+        //id数量增长后过滤器也跟着变大，留出一倍余量
+        Bits bits = Bits.create(Math.max(hashes.size() * 2L, 1024), fpp, maxBytes * 8);
+        for (Long h : hashes) {
+            bits.add(h);
+        }
+        synchronized (filter) {
+            for (Long h : filter.pending) {
+                bits.add(h);
+            }
+            filter.pending = null;
+            filter.bits = bits;
+        }
+        log.info("布隆过滤器{}重建完成，{}个id，{}KB，{}个哈希函数，预计误判率{}", keyPrefix, hashes.size(),
+                bits.size / 8 / 1024, bits.hashes, String.format("%.4f", bits.expectedFpp(hashes.size())));
+    }
+
+    /**
+     * 数字id直接混淆，其它id按字符串做murmur哈希，广播时收到的字符串id和数字id哈希一致
+     */
+    private static long hash(Object id) {
+        if (id instanceof Number) {
+            return mix(((Number) id).longValue());
+        }
+        String s = id.toString();
+        try {
+            return mix(Long.parseLong(s));
+        } catch (NumberFormatException e) {
+            return MurmurHash.hash64(s);
+        }
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 33)) * 0xFF51AFD7ED558CCDL;
+        z = (z ^ (z >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return z ^ (z >>> 33);
+    }
+
+    private static class Filter {
+        private final BiFunction<Long, Integer, List<Long>> scanner;
+        private final Counter rejected;
+        private volatile Bits bits;
+        private List<Long> pending;
+        private volatile long lastSync;
+
+        private Filter(BiFunction<Long, Integer, List<Long>> scanner, Counter rejected) {
+            this.scanner = scanner;
+            this.rejected = rejected;
+        }
+    }
+
+    /**
+     * 位数组，k个位置由两个哈希值组合得到（Kirsch-Mitzenmacher），置位用CAS，不需要加锁
+     */
+    private static class Bits {
+        private final AtomicLongArray words;
+        private final long size;
+        private final int hashes;
+
+        private Bits(long size, int hashes) {
+            this.words = new AtomicLongArray((int) ((size + 63) >>> 6));
+            this.size = size;
+            this.hashes = hashes;
+        }
+
+        /**
+         * m = -n·ln(p) / (ln2)²，k = m/n·ln2
+         */
+        private static Bits create(long n, double fpp, long maxBits) {
+            long optimal = (long) Math.ceil(-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+            long size = Math.max(64, Math.min(optimal, Math.min(maxBits, (long) Integer.MAX_VALUE * 64)));
+            int hashes = (int) Math.max(1, Math.min(16, Math.round((double) size / n * Math.log(2))));
+            return new Bits(size, hashes);
+        }
+
+        private void add(long h) {
+            long h2 = mix(h) | 1;
+            for (int i = 0; i < hashes; i++) {
+                long bit = Math.floorMod(h + i * h2, size);
+                int w = (int) (bit >>> 6);
+                long mask = 1L << bit;
+                long old;
+                while (((old = words.get(w)) & mask) == 0 && !words.compareAndSet(w, old, old | mask)) {
+                    //并发置位失败，重试
+                }
+            }
+        }
+
+        private boolean mightContain(long h) {
+            long h2 = mix(h) | 1;
+            for (int i = 0; i < hashes; i++) {
+                long bit = Math.floorMod(h + i * h2, size);
+                if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * (1 - e^(-kn/m))^k
+         */
+        private double expectedFpp(long n) {
+            return Math.pow(1 - Math.exp(-(double) hashes * n / size), hashes);
+        }
+    }
+}
@@ -1,21 +1,31 @@
 package com.ms.utils;
 
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
 import org.springframework.stereotype.Component;
 
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Function;
 
 import static com.ms.utils.RedisConstants.CACHE_NULL_TTL;
 import static com.ms.utils.RedisConstants.LOCK_SHOP_KEY;
+import static com.ms.utils.RedisConstants.LOCK_SHOP_TTL;
 
 @Slf4j
 @Component
@@ -23,14 +33,36 @@ public class CacheClient {
 
     private final StringRedisTemplate stringRedisTemplate;
 
+    private final LocalCache localCache;
+
+    private final CacheBloomFilter cacheBloomFilter;
+
+    private final CacheCodec cacheCodec;
+
+    /**
+     * redis中没有这个key，或者缓存的值无法解码
+     */
+    private static final Object MISSING = new Object();
+
+    private static final byte[] EMPTY = new byte[0];
+
     private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    /**
+     * 正在重建的key -> 重建结果，同一个key的并发未命中共用一次重建
+     */
+    private final Map<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+
+    public CacheClient(StringRedisTemplate stringRedisTemplate, LocalCache localCache,
+                       CacheBloomFilter cacheBloomFilter, CacheCodec cacheCodec) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.localCache = localCache;
+        this.cacheBloomFilter = cacheBloomFilter;
+        this.cacheCodec = cacheCodec;
     }
 
     public void set(String key, Object value, Long time, TimeUnit unit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        write(key, cacheCodec.encode(value), Expiration.from(time, unit));
     }
 
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit) {
@@ -39,56 +71,157 @@ public class CacheClient {
         redisData.setData(value);
         redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
         // 写入Redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        write(key, cacheCodec.encode(redisData), Expiration.persistent());
+    }
+
+    /**
+     * 删除缓存，并通知所有节点删除一级缓存，数据更新后调用
+     */
+    public void delete(String key) {
+        stringRedisTemplate.delete(key);
+        localCache.invalidate(key);
     }
 
     public <R,ID> R queryWithPassThrough(
             String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit){
-        String key = keyPrefix + id;
-        // 1.从redis查询商铺缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
-        // 2.判断是否存在
-        if (StrUtil.isNotBlank(json)) {
-            // 3.存在，直接返回
-            return JSONUtil.toBean(json, type);
-        }
-        // 判断命中的是否是空值
-        if (json != null) {
-            // 返回一个错误信息
+        // 0.布隆过滤器判断id一定不存在，直接返回
+        if (!cacheBloomFilter.mightContain(keyPrefix, id)) {
             return null;
         }
+        String key = keyPrefix + id;
+        // 1.先查一级缓存
+        Object local = localCache.get(key);
+        if (local != null) {
+            return local == LocalCache.NULL ? null : type.cast(local);
+        }
+        // 2.从redis查询商铺缓存
+        long generation = localCache.generation(key);
+        Object cached = read(key, type);
+        // 3.判断是否存在
+        if (cached != MISSING) {
+            // 4.存在，放入一级缓存后返回，空值也缓存
+            return hit(key, cached, type, generation, unit.toMillis(time));
+        }
 
-        // 4.不存在，根据id查询数据库
+        // 5.不存在，根据id查询数据库
+        localCache.recordMiss(key);
         R r = dbFallback.apply(id);
-        // 5.不存在，返回错误
+        // 6.不存在，返回错误
         if (r == null) {
             // 将空值写入redis
-            stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+            write(key, EMPTY, Expiration.from(CACHE_NULL_TTL, TimeUnit.MINUTES));
             // 返回错误信息
             return null;
         }
-        // 6.存在，写入redis
+        // 7.存在，写入redis
         this.set(key, r, time, unit);
         return r;
     }
 
+    /**
+     * 批量查询，缓存穿透的处理和queryWithPassThrough一致
+     * 一级缓存之后一次MGET，未命中的id一次交给dbFallback查询（IN查询），结果和空值在一个pipeline中写回
+     * @param dbFallback 按id批量查询，返回id -> 对象，不存在的id不放入
+     * @return id -> 对象，按ids的顺序，不存在的id不放入
+     */
+    public <R, ID> Map<ID, R> queryBatchWithPassThrough(
+            String keyPrefix, Collection<ID> ids, Class<R> type, Function<Collection<ID>, Map<ID, R>> dbFallback,
+            Long time, TimeUnit unit) {
+        Map<ID, Object> found = new HashMap<>(ids.size() * 4 / 3 + 1);
+        // 1.布隆过滤器和一级缓存
+        List<ID> remote = new ArrayList<>();
+        for (ID id : new LinkedHashSet<>(ids)) {
+            if (!cacheBloomFilter.mightContain(keyPrefix, id)) {
+                continue;
+            }
+            Object local = localCache.get(keyPrefix + id);
+            if (local != null) {
+                found.put(id, local);
+            } else {
+                remote.add(id);
+            }
+        }
+        // 2.一次MGET查询redis
+        List<ID> missing = new ArrayList<>();
+        if (!remote.isEmpty()) {
+            long[] generations = new long[remote.size()];
+            for (int i = 0; i < generations.length; i++) {
+                generations[i] = localCache.generation(keyPrefix + remote.get(i));
+            }
+            byte[][] keys = remote.stream().map(id -> raw(keyPrefix + id)).toArray(byte[][]::new);
+            List<byte[]> values = stringRedisTemplate.execute((RedisCallback<List<byte[]>>) c -> c.mGet(keys));
+            for (int i = 0; i < remote.size(); i++) {
+                ID id = remote.get(i);
+                String key = keyPrefix + id;
+                Object cached = decode(key, values == null ? null : values.get(i), type);
+                if (cached == MISSING) {
+                    missing.add(id);
+                } else {
+                    found.put(id, hit(key, cached, type, generations[i], unit.toMillis(time)));
+                }
+            }
+        }
+        // 3.未命中的id一次查询数据库，一个pipeline写回，不存在的写入空值
+        if (!missing.isEmpty()) {
+            missing.forEach(id -> localCache.recordMiss(keyPrefix + id));
+            Map<ID, R> loaded = dbFallback.apply(missing);
+            Map<byte[], byte[]> hits = new HashMap<>(missing.size() * 4 / 3 + 1);
+            List<byte[]> nulls = new ArrayList<>();
+            for (ID id : missing) {
+                R r = loaded.get(id);
+                if (r == null) {
+                    nulls.add(raw(keyPrefix + id));
+                } else {
+                    found.put(id, r);
+                    hits.put(raw(keyPrefix + id), cacheCodec.encode(r));
+                }
+            }
+            Expiration ttl = Expiration.from(time, unit);
+            Expiration nullTtl = Expiration.from(CACHE_NULL_TTL, TimeUnit.MINUTES);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) c -> {
+                hits.forEach((k, v) -> c.set(k, v, ttl, RedisStringCommands.SetOption.upsert()));
+                nulls.forEach(k -> c.set(k, EMPTY, nullTtl, RedisStringCommands.SetOption.upsert()));
+                return null;
+            });
+        }
+        // 4.按输入的顺序返回
+        Map<ID, R> result = new LinkedHashMap<>(found.size() * 4 / 3 + 1);
+        for (ID id : ids) {
+            Object r = found.get(id);
+            if (r != null && r != LocalCache.NULL) {
+                result.put(id, type.cast(r));
+            }
+        }
+        return result;
+    }
+
     public <R, ID> R queryWithLogicalExpire(
             String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
         String key = keyPrefix + id;
-        // 1.从redis查询商铺缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
-        // 2.判断是否存在
-        if (StrUtil.isBlank(json)) {
-            // 3.存在，直接返回
+        // 1.先查一级缓存，一级缓存的条目不会超过逻辑过期时间
+        Object local = localCache.get(key);
+        if (local != null) {
+            return type.cast(local);
+        }
+        // 2.从redis查询商铺缓存
+        long generation = localCache.generation(key);
+        Object cached = read(key, RedisData.class);
+        // 3.判断是否存在
+        if (cached == MISSING || cached == LocalCache.NULL) {
+            // 不存在，直接返回
+            localCache.recordMiss(key);
             return null;
         }
-        // 4.命中，需要先把json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
+        // 4.命中，二进制编码时data已经是目标类型，JSON编码时再转换一次
+        localCache.recordL2Hit(key);
+        RedisData redisData = (RedisData) cached;
+        Object data = redisData.getData();
+        R r = data instanceof JSONObject ? JSONUtil.toBean((JSONObject) data, type) : type.cast(data);
         LocalDateTime expireTime = redisData.getExpireTime();
         // 5.判断是否过期
         if(expireTime.isAfter(LocalDateTime.now())) {
-            // 5.1.未过期，直接返回店铺信息
+            // 5.1.未过期，放入一级缓存，直接返回店铺信息
+            localCache.put(key, r, Duration.between(LocalDateTime.now(), expireTime).toMillis(), generation);
             return r;
         }
         // 5.2.已过期，需要缓存重建
@@ -119,50 +252,151 @@ public class CacheClient {
 
     public <R, ID> R queryWithMutex(
             String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
-        String key = keyPrefix + id;
-        // 1.从redis查询商铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        // 2.判断是否存在
-        if (StrUtil.isNotBlank(shopJson)) {
-            // 3.存在，直接返回
-            return JSONUtil.toBean(shopJson, type);
-        }
-        // 判断命中的是否是空值
-        if (shopJson != null) {
-            // 返回一个错误信息
+        // 0.布隆过滤器判断id一定不存在，直接返回
+        if (!cacheBloomFilter.mightContain(keyPrefix, id)) {
             return null;
         }
+        String key = keyPrefix + id;
+        // 1.先查一级缓存
+        Object local = localCache.get(key);
+        if (local != null) {
+            return local == LocalCache.NULL ? null : type.cast(local);
+        }
+        // 2.从redis查询商铺缓存
+        long generation = localCache.generation(key);
+        Object cached = read(key, type);
+        // 3.判断是否存在，空值也直接返回
+        if (cached != MISSING) {
+            return hit(key, cached, type, generation, unit.toMillis(time));
+        }
 
-        // 4.实现缓存重建
-        // 4.1.获取互斥锁
+        // 4.实现缓存重建，本节点同一个key只有一个线程去重建，其它线程等待它的结果
+        CompletableFuture<Object> flight = new CompletableFuture<>();
+        CompletableFuture<Object> leader = inFlight.putIfAbsent(key, flight);
+        if (leader != null) {
+            return type.cast(await(key, leader));
+        }
+        try {
+            R r = rebuildWithMutex(key, id, type, dbFallback, time, unit, generation);
+            flight.complete(r);
+            return r;
+        } catch (RuntimeException e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, flight);
+        }
+    }
+
+    /**
+     * 持有互斥锁重建缓存，只有每个节点的领头线程调用
+     * 锁被其它节点持有时退避后先查redis，其它节点重建完成就直接使用
+     */
+    private <R, ID> R rebuildWithMutex(String key, ID id, Class<R> type, Function<ID, R> dbFallback,
+                                       Long time, TimeUnit unit, long generation) {
         String lockKey = LOCK_SHOP_KEY + id;
-        R r = null;
+        boolean isLock = false;
         try {
-            boolean isLock = tryLock(lockKey);
-            // 4.2.判断是否获取成功
-            if (!isLock) {
-                // 4.3.获取锁失败，休眠并重试
-                Thread.sleep(50);
-                return queryWithMutex(keyPrefix, id, type, dbFallback, time, unit);
+            // 4.1.获取互斥锁，失败时退避重试
+            long backoff = 10;
+            while (!(isLock = tryLock(lockKey))) {
+                Thread.sleep(backoff);
+                backoff = Math.min(backoff * 2, 200);
+                Object cached = read(key, type);
+                if (cached != MISSING) {
+                    return hit(key, cached, type, generation, unit.toMillis(time));
+                }
+            }
+            // 4.2.获取锁成功，再查一次redis，其它节点可能已经重建
+            Object cached = read(key, type);
+            if (cached != MISSING) {
+                return hit(key, cached, type, generation, unit.toMillis(time));
             }
-            // 4.4.获取锁成功，根据id查询数据库
-            r = dbFallback.apply(id);
+            // 4.3.根据id查询数据库
+            localCache.recordMiss(key);
+            R r = dbFallback.apply(id);
             // 5.不存在，返回错误
             if (r == null) {
                 // 将空值写入redis
-                stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+                write(key, EMPTY, Expiration.from(CACHE_NULL_TTL, TimeUnit.MINUTES));
                 // 返回错误信息
                 return null;
             }
             // 6.存在，写入redis
             this.set(key, r, time, unit);
+            return r;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            // 7.释放锁，只释放自己获取到的锁
+            if (isLock) {
+                unlock(lockKey);
+            }
+        }
+    }
+
+    /**
+     * 等待领头线程重建完成，领头线程失败时抛出同样的异常
+     */
+    private Object await(String key, CompletableFuture<Object> leader) {
+        try {
+            return leader.get(LOCK_SHOP_TTL, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException(cause);
+        } catch (TimeoutException e) {
+            throw new IllegalStateException("等待缓存重建超时：" + key, e);
         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw new RuntimeException(e);
-        }finally {
-            // 7.释放锁
-            unlock(lockKey);
         }
-        // 8.返回
+    }
+
+    /**
+     * 读取并解码redis中的值
+     * @return 解码后的对象，空值返回LocalCache.NULL，不存在或无法解码返回MISSING
+     */
+    private Object read(String key, Class<?> type) {
+        return decode(key, stringRedisTemplate.execute((RedisCallback<byte[]>) c -> c.get(raw(key))), type);
+    }
+
+    private Object decode(String key, byte[] bytes, Class<?> type) {
+        if (bytes == null) {
+            return MISSING;
+        }
+        if (bytes.length == 0) {
+            return LocalCache.NULL;
+        }
+        try {
+            return cacheCodec.decode(bytes, type);
+        } catch (RuntimeException e) {
+            // 类结构变化或者数据损坏，按未命中处理，重建时覆盖
+            log.warn("缓存{}解码失败，按未命中处理", key, e);
+            return MISSING;
+        }
+    }
+
+    private void write(String key, byte[] value, Expiration expiration) {
+        stringRedisTemplate.execute((RedisCallback<Boolean>) c ->
+                c.set(raw(key), value, expiration, RedisStringCommands.SetOption.upsert()));
+    }
+
+    private static byte[] raw(String key) {
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * redis命中，放入一级缓存
+     */
+    private <R> R hit(String key, Object cached, Class<R> type, long generation, long ttlMillis) {
+        localCache.recordL2Hit(key);
+        if (cached == LocalCache.NULL) {
+            localCache.put(key, LocalCache.NULL, TimeUnit.MINUTES.toMillis(CACHE_NULL_TTL), generation);
+            return null;
+        }
+        R r = type.cast(cached);
+        localCache.put(key, r, ttlMillis, generation);
         return r;
     }
 
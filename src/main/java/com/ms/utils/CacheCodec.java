@@ -0,0 +1,28 @@
+package com.ms.utils;
+
+/**
+ * 缓存值的编解码
+ * CacheClient 和 Spring Cache 都通过它读写redis中的值，实现由 cache.codec.type 选择：
+ * binary（紧凑二进制，大值压缩）或 json（Hutool JSON，可读，便于排查）。
+ */
+public interface CacheCodec {
+
+    /**
+     * 编码，value不为null
+     */
+    byte[] encode(Object value);
+
+    /**
+     * 解码，数据损坏或者与当前的类结构不一致时抛出异常
+     * @param type 期望的类型，不确定时传Object.class
+     */
+    <T> T decode(byte[] bytes, Class<T> type);
+
+    /**
+     * 数据是否是当前的编码格式，兼容读取的旧格式返回false
+     * Spring Cache解码时不知道期望的类型，旧格式的值只能解析成JSONObject/JSONArray，由调用方按未命中处理后覆盖
+     */
+    default boolean isCurrentFormat(byte[] bytes) {
+        return true;
+    }
+}
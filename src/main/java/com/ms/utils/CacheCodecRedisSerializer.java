@@ -0,0 +1,51 @@
+package com.ms.utils;
+
+import org.springframework.cache.support.NullValue;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
+
+/**
+ * Spring Cache的值序列化，委托给CacheCodec
+ * 缓存的null（NullValue）存为空值。改造前GenericJackson2JsonRedisSerializer写入的值不是当前格式，
+ * 解码时抛出异常，由MyCacheConfig的错误处理按未命中处理，重新查询后覆盖
+ */
+public class CacheCodecRedisSerializer implements RedisSerializer<Object> {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final CacheCodec cacheCodec;
+
+    public CacheCodecRedisSerializer(CacheCodec cacheCodec) {
+        this.cacheCodec = cacheCodec;
+    }
+
+    @Override
+    public byte[] serialize(Object value) throws SerializationException {
+        if (value == null || value instanceof NullValue) {
+            return EMPTY;
+        }
+        try {
+            return cacheCodec.encode(value);
+        } catch (RuntimeException e) {
+            throw new SerializationException("缓存编码失败：" + value.getClass().getName(), e);
+        }
+    }
+
+    @Override
+    public Object deserialize(byte[] bytes) throws SerializationException {
+        if (bytes == null) {
+            return null;
+        }
+        if (bytes.length == 0) {
+            return NullValue.INSTANCE;
+        }
+        if (!cacheCodec.isCurrentFormat(bytes)) {
+            throw new SerializationException("缓存不是当前的编码格式");
+        }
+        try {
+            return cacheCodec.decode(bytes, Object.class);
+        } catch (RuntimeException e) {
+            throw new SerializationException("缓存解码失败", e);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.ms.utils;
+
+import cn.hutool.json.JSONUtil;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * JSON编解码，和改造前写入redis的格式一致
+ */
+@Component
+@ConditionalOnProperty(name = "cache.codec.type", havingValue = "json")
+public class JsonCacheCodec implements CacheCodec {
+
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        return fromJson(bytes, type);
+    }
+
+    /**
+     * 不知道类型时解析为JSONObject或JSONArray
+     */
+    static <T> T fromJson(byte[] bytes, Class<T> type) {
+        String json = new String(bytes, StandardCharsets.UTF_8);
+        return type == Object.class ? type.cast(JSONUtil.parse(json)) : JSONUtil.toBean(json, type);
+    }
+}
@@ -0,0 +1,261 @@
+package com.ms.utils;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.ms.utils.RedisConstants.CACHE_INVALIDATE_CHANNEL;
+
+/**
+ * 进程内一级缓存，位于redis之前
+ * 按key的哈希分成多个段，每段是一个按访问顺序排列的LinkedHashMap，超过容量时淘汰最久未访问的key；
+ * 每个条目有自己的过期时间，最长ttl-seconds。缓存的是反序列化后的对象，命中时不访问redis也不解析json，
+ * 调用方不能修改取到的对象。
+ * 写操作删除缓存时通过redis发布订阅通知所有节点删除本地条目；通知可能丢失，ttl兜底。
+ * 按key前缀统计一级缓存、redis和数据库的命中次数。
+ */
+@Slf4j
+@Component
+public class LocalCache implements MessageListener {
+
+    /**
+     * 缓存的空值，对应redis中的空字符串
+     */
+    public static final Object NULL = new Object();
+
+    private static final int SEGMENTS = 16;
+
+    /**
+     * 失效版本的分片数，远大于段数，一个key频繁失效只影响哈希到同一分片的少数key
+     */
+    private static final int GENERATIONS = 1024;
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final RedisMessageListenerContainer listenerContainer;
+
+    private final MeterRegistry meterRegistry;
+
+    @Value("${cache.local.enabled:true}")
+    private boolean enabled;
+
+    @Value("${cache.local.max-size:10000}")
+    private int maxSize;
+
+    @Value("${cache.local.ttl-seconds:60}")
+    private long ttlSeconds;
+
+    private Segment[] segments;
+
+    /**
+     * 按key哈希分片的失效版本，key失效时所在分片加一，从redis读到值之后如果这个分片期间发生过失效就不放入一级缓存，
+     * 避免把失效之前读到的旧值放回去
+     */
+    private final AtomicLongArray generations = new AtomicLongArray(GENERATIONS);
+
+    private final Map<String, PrefixStats> stats = new ConcurrentHashMap<>();
+
+    public LocalCache(StringRedisTemplate stringRedisTemplate,
+                      RedisMessageListenerContainer listenerContainer,
+                      MeterRegistry meterRegistry) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.listenerContainer = listenerContainer;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    private void init() {
+        segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(Math.max(1, maxSize / SEGMENTS));
+        }
+        listenerContainer.addMessageListener(this, new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+    }
+
+    /**
+     * 读取一级缓存，命中时记一次一级缓存命中
+     * @return 缓存的对象，缓存的空值返回NULL，未命中返回null
+     */
+    public Object get(String key) {
+        if (!enabled) {
+            return null;
+        }
+        Object value = segmentOf(key).get(key, System.currentTimeMillis());
+        if (value != null) {
+            statsOf(key).l1.increment();
+        }
+        return value;
+    }
+
+    /**
+     * key当前的失效版本，在读取redis之前获取，放入一级缓存时传入
+     */
+    public long generation(String key) {
+        return generations.get(generationOf(key));
+    }
+
+    /**
+     * 放入一级缓存
+     * @param value 对象或NULL
+     * @param ttlMillis 条目的有效期，超过ttl-seconds时按ttl-seconds
+     * @param readGeneration 读取redis之前获取的失效版本
+     */
+    public void put(String key, Object value, long ttlMillis, long readGeneration) {
+        if (!enabled || value == null || ttlMillis <= 0) {
+            return;
+        }
+        long expireAt = System.currentTimeMillis() + Math.min(ttlMillis, TimeUnit.SECONDS.toMillis(ttlSeconds));
+        Segment segment = segmentOf(key);
+        synchronized (segment) {
+            //读取redis之后发生过失效，值可能已经过时
+            if (generation(key) == readGeneration) {
+                segment.put(key, new CacheEntry(value, expireAt));
+            }
+        }
+    }
+
+    /**
+     * 删除本节点和其它节点的一级缓存，写操作删除redis缓存之后调用
+     */
+    public void invalidate(String key) {
+        remove(key);
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    public void recordL2Hit(String key) {
+        statsOf(key).l2.increment();
+    }
+
+    public void recordMiss(String key) {
+        statsOf(key).miss.increment();
+    }
+
+    private void remove(String key) {
+        if (!enabled) {
+            return;
+        }
+        Segment segment = segmentOf(key);
+        synchronized (segment) {
+            generations.incrementAndGet(generationOf(key));
+            segment.remove(key);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String key = new String(message.getBody(), StandardCharsets.UTF_8);
+        remove(key);
+        log.debug("一级缓存失效：{}", key);
+    }
+
+    private Segment segmentOf(String key) {
+        int h = key.hashCode();
+        return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    private static int generationOf(String key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & (GENERATIONS - 1);
+    }
+
+    /**
+     * key前缀的统计，第一次出现时注册指标
+     */
+    private PrefixStats statsOf(String key) {
+        String prefix = key.substring(0, key.lastIndexOf(':') + 1);
+        PrefixStats s = stats.get(prefix);
+        return s != null ? s : stats.computeIfAbsent(prefix, this::register);
+    }
+
+    private PrefixStats register(String prefix) {
+        PrefixStats s = new PrefixStats();
+        FunctionCounter.builder("cache.gets", s.l1, LongAdder::sum)
+                .tags("prefix", prefix, "result", "l1").register(meterRegistry);
+        FunctionCounter.builder("cache.gets", s.l2, LongAdder::sum)
+                .tags("prefix", prefix, "result", "l2").register(meterRegistry);
+        FunctionCounter.builder("cache.gets", s.miss, LongAdder::sum)
+                .tags("prefix", prefix, "result", "miss").register(meterRegistry);
+        Gauge.builder("cache.hit.ratio", s, PrefixStats::l1Ratio)
+                .tags("prefix", prefix, "tier", "l1")
+                .description("一级缓存命中率").register(meterRegistry);
+        Gauge.builder("cache.hit.ratio", s, PrefixStats::totalRatio)
+                .tags("prefix", prefix, "tier", "all")
+                .description("一级缓存和redis的总命中率").register(meterRegistry);
+        return s;
+    }
+
+    private static class CacheEntry {
+        private final Object value;
+        private final long expireAt;
+
+        private CacheEntry(Object value, long expireAt) {
+            this.value = value;
+            this.expireAt = expireAt;
+        }
+    }
+
+    /**
+     * 一个段，按访问顺序排列，超过容量时淘汰最久未访问的条目，访问时加锁
+     */
+    @SuppressWarnings("serial")
+    private static class Segment extends LinkedHashMap<String, CacheEntry> {
+        private final int capacity;
+
+        private Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        private synchronized Object get(String key, long now) {
+            CacheEntry entry = super.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.expireAt <= now) {
+                super.remove(key);
+                return null;
+            }
+            return entry.value;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+            return size() > capacity;
+        }
+    }
+
+    private static class PrefixStats {
+        private final LongAdder l1 = new LongAdder();
+        private final LongAdder l2 = new LongAdder();
+        private final LongAdder miss = new LongAdder();
+
+        private double l1Ratio() {
+            long l1Hits = l1.sum();
+            long total = l1Hits + l2.sum() + miss.sum();
+            return total == 0 ? Double.NaN : (double) l1Hits / total;
+        }
+
+        private double totalRatio() {
+            long hits = l1.sum() + l2.sum();
+            long total = hits + miss.sum();
+            return total == 0 ? Double.NaN : (double) hits / total;
+        }
+    }
+}
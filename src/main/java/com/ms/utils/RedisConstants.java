@@ -7,15 +7,47 @@ public class RedisConstants {
     public static final Long LOGIN_USER_TTL = 30L;
 
     public static final Long CACHE_NULL_TTL = 2L;
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:channel:invalidate";
+    public static final String CACHE_BLOOM_CHANNEL = "cache:channel:bloom";
+    public static final String CACHE_BLOOM_ADDED_KEY = "cache:bloom:added:";
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
     public static final String CACHE_SHOP_KEY_SPRING_CACHE = "cache:shop";
 
+    public static final Long CACHE_USER_TTL = 30L;
+    public static final String CACHE_USER_KEY = "cache:user:";
+
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_SHARDS_KEY = "seckill:shards:";
+    public static final String SECKILL_WINDOW_KEY = "seckill:window:";
+    public static final String SECKILL_LEASE_KEY = "seckill:lease:";
+    public static final String SECKILL_ROOM_KEY = "seckill:room:";
+    public static final String SECKILL_PAY_TIMEOUT_KEY = "seckill:pay:timeout:";
+    public static final String SECKILL_PAY_BUCKETS_KEY = "seckill:pay:buckets";
+    public static final String SECKILL_PAY_CLAIM_KEY = "seckill:pay:claim:";
+    public static final String SECKILL_PAY_RELEASE_KEY = "seckill:pay:release:";
+    public static final String SECKILL_ACTIVE_KEY = "seckill:active";
+    public static final String SECKILL_ARCHIVE_KEY = "seckill:archive:";
+    public static final String ORDER_ARCHIVE_LOCK_KEY = "lock:order:archive";
+    public static final String USER_ORDER_KEY = "order:user:";
+    public static final Long USER_ORDER_TTL = 30L;
+    public static final String CACHE_ORDER_KEY = "cache:order:";
+    public static final Long CACHE_ORDER_TTL = 10L;
+    public static final String SECKILL_LIMIT_KEY = "seckill:limit:";
+    public static final String SECKILL_LIMIT_CONF_KEY = "seckill:limit:conf:";
+    public static final String SECKILL_RESULT_KEY = "seckill:result:";
+    public static final String SECKILL_RESULT_CHANNEL = "seckill:channel:result";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:channel:sold-out";
+    public static final String SECKILL_RESTOCK_CHANNEL = "seckill:channel:restock";
+    public static final String SECKILL_ORDER_STREAM = "stream.orders";
+    public static final String SECKILL_ORDER_GROUP = "g1";
+    public static final String SECKILL_ORDER_DLQ = "stream.orders.dlq";
+    public static final String SECKILL_CONSUMER_HEARTBEAT_KEY = "stream.orders:consumers";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
@@ -1,12 +1,23 @@
 package com.ms.utils;
 
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+@Slf4j
 @Component
 public class RedisIdWorker {
     /**
@@ -18,21 +29,165 @@ public class RedisIdWorker {
      */
     private static final int COUNT_BITS = 32;
 
+    private static final long MAX_SEQUENCE = (1L << COUNT_BITS) - 1;
+
+    private static final long SECONDS_PER_DAY = 86400L;
+
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
+    private static final ExecutorService SEGMENT_PREFETCH_EXECUTOR = Executors.newSingleThreadExecutor(); //异步预取下一个号段
+
     private StringRedisTemplate stringRedisTemplate;
 
+    /**
+     * 号段的最小、最大长度，号段长度按发号速度在两者之间调整
+     */
+    @Value("${id-worker.min-step:100}")
+    private int minStep = 100;
+
+    @Value("${id-worker.max-step:100000}")
+    private int maxStep = 100000;
+
+    /**
+     * 期望一个号段能用多久
+     */
+    @Value("${id-worker.target-lease-millis:5000}")
+    private long targetLeaseMillis = 5000;
+
+    /**
+     * 剩余号数低于号段的这个比例时开始预取下一个号段
+     */
+    @Value("${id-worker.prefetch-ratio:0.2}")
+    private double prefetchRatio = 0.2;
+
+    private final Map<String, SequenceAllocator> allocators = new ConcurrentHashMap<>();
+
     public RedisIdWorker(StringRedisTemplate stringRedisTemplate) {
         this.stringRedisTemplate = stringRedisTemplate;
     }
 
     public long nextId(String keyPrefix) {
         //生成时间戳
-        LocalDateTime now = LocalDateTime.now();
-        long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
+        long nowSecond = LocalDateTime.now().toEpochSecond(ZoneOffset.UTC);
         long timeStamp = nowSecond - BEGIN_TIMESTAMP;
-        //生成序列号
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd")); //使用精确到天的日期作为分隔，以防超出自动增长大小限制
-        long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
+        //生成序列号，从本地号段中取，号段按天划分，以防超出自动增长大小限制
+        long count = allocators.computeIfAbsent(keyPrefix, SequenceAllocator::new)
+                .next(nowSecond / SECONDS_PER_DAY);
         //拼接与返回
         return timeStamp << COUNT_BITS | count;
     }
+
+    /**
+     * 从id中解析出生成时间
+     */
+    public static LocalDateTime timeOf(long id) {
+        return LocalDateTime.ofEpochSecond((id >>> COUNT_BITS) + BEGIN_TIMESTAMP, 0, ZoneOffset.UTC);
+    }
+
+    /**
+     * 一个号段：[end - step + 1, end]，只在所属的那一天有效
+     */
+    private static class Segment {
+        private final long day;
+        private final long end;
+        private final long prefetchAt;
+        private final long leasedAt = System.currentTimeMillis();
+        private final AtomicLong cursor;
+
+        private Segment(long day, long end, int step, double prefetchRatio) {
+            this.day = day;
+            this.end = end;
+            this.prefetchAt = (long) (step * prefetchRatio);
+            this.cursor = new AtomicLong(end - step + 1);
+        }
+    }
+
+    /**
+     * 单个业务前缀的号段分配器
+     * 取号只对当前号段做一次getAndIncrement，只有号段用完时才加锁切换
+     */
+    private class SequenceAllocator {
+        private final String keyPrefix;
+        private final AtomicBoolean prefetching = new AtomicBoolean(false);
+        private volatile Segment current;
+        private volatile CompletableFuture<Segment> prefetched;
+        private volatile int step = minStep;
+
+        private SequenceAllocator(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        private long next(long day) {
+            while (true) {
+                Segment segment = current;
+                if (segment != null && segment.day == day) {
+                    long seq = segment.cursor.getAndIncrement();
+                    if (seq <= segment.end) {
+                        if (segment.end - seq == segment.prefetchAt) {
+                            //剩余号数到达阈值，只会有一个线程命中
+                            prefetch(day);
+                        }
+                        return seq;
+                    }
+                }
+                switchSegment(segment, day);
+            }
+        }
+
+        private void prefetch(long day) {
+            if (!prefetching.compareAndSet(false, true)) {
+                return;
+            }
+            int nextStep = step;
+            prefetched = CompletableFuture.supplyAsync(() -> lease(day, nextStep), SEGMENT_PREFETCH_EXECUTOR);
+        }
+
+        private synchronized void switchSegment(Segment old, long day) {
+            if (current != old) {
+                //其它线程已经完成切换
+                return;
+            }
+            Segment next = null;
+            CompletableFuture<Segment> future = prefetched;
+            if (future != null) {
+                prefetched = null;
+                prefetching.set(false);
+                try {
+                    next = future.join();
+                } catch (Exception e) {
+                    log.error("预取号段失败！", e);
+                }
+            }
+            if (old != null) {
+                adaptStep(System.currentTimeMillis() - old.leasedAt);
+            }
+            if (next == null || next.day != day) {
+                next = lease(day, step);
+            }
+            current = next;
+        }
+
+        /**
+         * 号段用得太快就加倍，用得太慢就减半
+         */
+        private void adaptStep(long usedMillis) {
+            if (usedMillis < targetLeaseMillis / 2) {
+                step = Math.min(step * 2, maxStep);
+            } else if (usedMillis > targetLeaseMillis * 2) {
+                step = Math.max(step / 2, minStep);
+            }
+        }
+
+        /**
+         * INCRBY icr:{prefix}:{date} step 一次租用一个号段
+         */
+        private Segment lease(long day, int step) {
+            String date = LocalDate.ofEpochDay(day).format(DATE_FORMATTER);
+            Long end = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date, step);
+            if (end == null || end > MAX_SEQUENCE) {
+                throw new IllegalStateException("序列号超出范围：" + keyPrefix + ":" + date);
+            }
+            return new Segment(day, end, step, prefetchRatio);
+        }
+    }
 }
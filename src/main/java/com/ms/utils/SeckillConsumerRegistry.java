@@ -0,0 +1,227 @@
+package com.ms.utils;
+
+import cn.hutool.core.util.RandomUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.RedisSystemException;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+
+import static com.ms.utils.RedisConstants.*;
+
+/**
+ * 订单消息队列的消费者注册
+ * 每个节点启动时生成唯一的节点名，消费者名为 节点名#c序号，并定时在 stream.orders:consumers 中心跳。
+ * 存活节点定时把心跳超时节点（以及旧版本的c1等未注册消费者）空闲过久的pending消息XCLAIM过来处理，
+ * Redis 6.2以下没有XAUTOCLAIM，这里用XPENDING + XCLAIM实现。认领在单独的线程中分页进行，每轮扫完失效消费者的整个pending，
+ * 处理慢的时候也不会推迟心跳。
+ * 进程内秒杀引擎（seckill.engine=local）不使用消息队列，只提供节点名，不创建消费组也不心跳。
+ */
+@Slf4j
+@Component
+public class SeckillConsumerRegistry {
+
+    private static final String CONSUMER_SEPARATOR = "#";
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final String nodeId;
+
+    @Value("${seckill.engine:redis}")
+    private String engine;
+
+    @Value("${seckill.order.heartbeat-seconds:5}")
+    private long heartbeatSeconds;
+
+    @Value("${seckill.order.consumer-timeout-seconds:30}")
+    private long consumerTimeoutSeconds;
+
+    @Value("${seckill.order.reclaim-min-idle-seconds:60}")
+    private long reclaimMinIdleSeconds;
+
+    @Value("${seckill.order.batch-size:50}")
+    private int batchSize;
+
+    private final ScheduledExecutorService heartbeatExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    private final ScheduledExecutorService reclaimExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    public SeckillConsumerRegistry(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        // pid@hostname，再加随机串区分同一进程内的重启
+        String jvmName = ManagementFactory.getRuntimeMXBean().getName();
+        this.nodeId = jvmName.replace(CONSUMER_SEPARATOR, "_") + "-" + RandomUtil.randomString(6);
+    }
+
+    /**
+     * 启动时自动创建消息队列和消费组 XGROUP CREATE stream.orders g1 0 MKSTREAM
+     */
+    @PostConstruct
+    private void init() {
+        if (!usesStream()) {
+            return;
+        }
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands().xGroupCreate(
+                    SECKILL_ORDER_STREAM.getBytes(StandardCharsets.UTF_8), SECKILL_ORDER_GROUP, ReadOffset.from("0"), true));
+            log.info("创建消费组{}", SECKILL_ORDER_GROUP);
+        } catch (RedisSystemException e) {
+            // BUSYGROUP，消费组已存在
+            log.debug("消费组{}已存在", SECKILL_ORDER_GROUP);
+        }
+        heartbeat();
+    }
+
+    @PreDestroy
+    private void destroy() {
+        heartbeatExecutor.shutdown();
+        reclaimExecutor.shutdown();
+        if (!usesStream()) {
+            return;
+        }
+        stringRedisTemplate.opsForZSet().remove(SECKILL_CONSUMER_HEARTBEAT_KEY, nodeId);
+    }
+
+    private boolean usesStream() {
+        return !"local".equals(engine);
+    }
+
+    public String nodeId() {
+        return nodeId;
+    }
+
+    /**
+     * 本节点第index个消费者的名称
+     */
+    public String consumerName(int index) {
+        return nodeId + CONSUMER_SEPARATOR + "c" + index;
+    }
+
+    /**
+     * 开始心跳，并定时认领失效消费者的pending消息
+     * @param reclaimHandler 处理认领到的消息，参数是认领后的消费者和消息，处理成功后需要ACK
+     */
+    public void start(BiConsumer<String, List<MapRecord<String, String, String>>> reclaimHandler) {
+        heartbeatExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                heartbeat();
+            } catch (Exception e) {
+                log.error("消费者心跳异常！", e);
+            }
+        }, heartbeatSeconds, heartbeatSeconds, TimeUnit.SECONDS);
+        reclaimExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                reclaim(reclaimHandler);
+            } catch (Exception e) {
+                log.error("认领pending消息异常！", e);
+            }
+        }, heartbeatSeconds, heartbeatSeconds, TimeUnit.SECONDS);
+    }
+
+    private void heartbeat() {
+        stringRedisTemplate.opsForZSet().add(SECKILL_CONSUMER_HEARTBEAT_KEY, nodeId, System.currentTimeMillis());
+    }
+
+    private boolean isAlive(String consumerName) {
+        int i = consumerName.indexOf(CONSUMER_SEPARATOR);
+        if (i < 0) {
+            // 未注册的消费者，例如旧版本的c1
+            return false;
+        }
+        String node = consumerName.substring(0, i);
+        if (nodeId.equals(node)) {
+            return true;
+        }
+        Double lastBeat = stringRedisTemplate.opsForZSet().score(SECKILL_CONSUMER_HEARTBEAT_KEY, node);
+        return lastBeat != null
+                && lastBeat >= System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(consumerTimeoutSeconds);
+    }
+
+    /**
+     * 按id分页扫完消费者的pending，每页认领空闲足够久的消息并处理
+     * @return 认领的消息数
+     */
+    private int reclaimAll(String deadConsumer, String newOwner, Duration minIdle,
+                           BiConsumer<String, List<MapRecord<String, String, String>>> reclaimHandler) {
+        int total = 0;
+        Range<String> range = Range.unbounded();
+        while (true) {
+            //2.读取失效消费者的一页pending消息，只认领空闲足够久的
+            PendingMessages pending = stringRedisTemplate.opsForStream().pending(SECKILL_ORDER_STREAM,
+                    org.springframework.data.redis.connection.stream.Consumer.from(SECKILL_ORDER_GROUP, deadConsumer),
+                    range, batchSize);
+            if (pending.isEmpty()) {
+                return total;
+            }
+            RecordId[] ids = pending.stream()
+                    .filter(p -> p.getElapsedTimeSinceLastDelivery().compareTo(minIdle) >= 0)
+                    .map(PendingMessage::getId)
+                    .toArray(RecordId[]::new);
+            if (ids.length > 0) {
+                //3.XCLAIM stream.orders g1 newOwner minIdle id...，带着min-idle防止多个节点重复认领
+                List<ByteRecord> claimed = stringRedisTemplate.execute((RedisCallback<List<ByteRecord>>) connection ->
+                        connection.streamCommands().xClaim(SECKILL_ORDER_STREAM.getBytes(StandardCharsets.UTF_8),
+                                SECKILL_ORDER_GROUP, newOwner,
+                                RedisStreamCommands.XClaimOptions.minIdle(minIdle).ids(ids)));
+                if (claimed != null && !claimed.isEmpty()) {
+                    total += claimed.size();
+                    reclaimHandler.accept(newOwner, claimed.stream()
+                            .map(r -> r.deserialize(RedisSerializer.string()))
+                            .collect(Collectors.toList()));
+                }
+            }
+            if (pending.size() < batchSize) {
+                return total;
+            }
+            //下一页从这一页最后一条之后开始，认领后还留在pending中的消息（本节点的消费者）不会重复读取
+            RecordId last = pending.get(pending.size() - 1).getId();
+            range = Range.rightUnbounded(Range.Bound.inclusive(last.getTimestamp() + "-" + (last.getSequence() + 1)));
+        }
+    }
+
+    private void reclaim(BiConsumer<String, List<MapRecord<String, String, String>>> reclaimHandler) {
+        //1.找出有pending消息的消费者 XPENDING stream.orders g1
+        PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP);
+        String newOwner = consumerName(1);
+        Duration minIdle = Duration.ofSeconds(reclaimMinIdleSeconds);
+        for (Map.Entry<String, Long> entry : summary.getPendingMessagesPerConsumer().entrySet()) {
+            String deadConsumer = entry.getKey();
+            // 本节点的消费者也参与认领，处理失败后滞留在pending中的消息同样需要重试
+            boolean own = deadConsumer.startsWith(nodeId + CONSUMER_SEPARATOR);
+            if (entry.getValue() == 0 || (!own && isAlive(deadConsumer))) {
+                continue;
+            }
+            int total = reclaimAll(deadConsumer, newOwner, minIdle, reclaimHandler);
+            if (total > 0) {
+                log.info("从失效消费者{}认领了{}条消息", deadConsumer, total);
+            }
+        }
+        //4.清理没有pending消息的失效消费者和过期心跳
+        stringRedisTemplate.opsForStream().consumers(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP).forEach(consumer -> {
+            if (consumer.pendingCount() == 0 && !isAlive(consumer.consumerName())) {
+                stringRedisTemplate.opsForStream().deleteConsumer(SECKILL_ORDER_STREAM,
+                        org.springframework.data.redis.connection.stream.Consumer.from(SECKILL_ORDER_GROUP, consumer.consumerName()));
+            }
+        });
+        stringRedisTemplate.opsForZSet().removeRangeByScore(SECKILL_CONSUMER_HEARTBEAT_KEY, 0,
+                System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(consumerTimeoutSeconds) * 10);
+    }
+}
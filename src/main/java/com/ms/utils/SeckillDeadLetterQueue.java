@@ -0,0 +1,162 @@
+package com.ms.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.ms.entity.VoucherOrder;
+import com.ms.mapper.VoucherOrderMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands.Limit;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+
+import static com.ms.utils.RedisConstants.*;
+
+/**
+ * 订单消息的死信队列 stream.orders.dlq
+ * 解析失败或超过最大投递次数的消息连同失败原因转移到这里，原消息ACK掉，不再阻塞订单处理。
+ * 能解析出订单的消息先登记到 tb_voucher_order_abandoned，预写日志对账时不再补写；重新投递时删除登记。
+ */
+@Slf4j
+@Component
+public class SeckillDeadLetterQueue {
+
+    public static final String FIELD_REASON = "dlqReason";
+    public static final String FIELD_ORIGINAL_ID = "dlqOriginalId";
+    public static final String FIELD_DELIVERIES = "dlqDeliveries";
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final SeckillOrderResults seckillOrderResults;
+
+    private final VoucherOrderMapper voucherOrderMapper;
+
+    public SeckillDeadLetterQueue(StringRedisTemplate stringRedisTemplate, SeckillOrderResults seckillOrderResults,
+                                  VoucherOrderMapper voucherOrderMapper) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.seckillOrderResults = seckillOrderResults;
+        this.voucherOrderMapper = voucherOrderMapper;
+    }
+
+    /**
+     * 转入死信队列并ACK原消息
+     */
+    public void deadLetter(MapRecord<String, ?, ?> record, String reason, long deliveries) {
+        Map<String, String> value = new HashMap<>();
+        record.getValue().forEach((k, v) -> value.put(String.valueOf(k), String.valueOf(v)));
+        value.put(FIELD_REASON, reason == null ? "超过最大投递次数" : reason);
+        value.put(FIELD_ORIGINAL_ID, record.getId().getValue());
+        value.put(FIELD_DELIVERIES, String.valueOf(deliveries));
+        //先登记放弃的订单，登记失败时抛出异常，消息留在pending中下次重试
+        VoucherOrder order = orderOf(value);
+        if (order != null) {
+            voucherOrderMapper.insertAbandoned(Collections.singletonList(order),
+                    StrUtil.sub("死信：" + value.get(FIELD_REASON), 0, 255));
+        }
+        //XADD stream.orders.dlq * ...
+        stringRedisTemplate.opsForStream().add(StreamRecords.mapBacked(value).withStreamKey(SECKILL_ORDER_DLQ));
+        //XACK stream.orders g1 id
+        stringRedisTemplate.opsForStream().acknowledge(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP, record.getId());
+        log.warn("订单消息{}转入死信队列，原因：{}", record.getId(), value.get(FIELD_REASON));
+        //能解析出订单时通知查询结果的请求
+        if (order != null) {
+            try {
+                seckillOrderResults.publish(order.getId(), order.getUserId(), SeckillOrderResults.FAILED);
+            } catch (Exception e) {
+                log.error("发布订单{}的失败结果异常", order.getId(), e);
+            }
+        }
+    }
+
+    /**
+     * 从消息内容中解析订单，字段不完整时返回null
+     */
+    private static VoucherOrder orderOf(Map<?, ?> value) {
+        String id = String.valueOf(value.get("id"));
+        String userId = String.valueOf(value.get("userId"));
+        String voucherId = String.valueOf(value.get("voucherId"));
+        if (!id.matches("\\d+") || !userId.matches("\\d+") || !voucherId.matches("\\d+")) {
+            return null;
+        }
+        VoucherOrder order = new VoucherOrder();
+        order.setId(Long.valueOf(id));
+        order.setUserId(Long.valueOf(userId));
+        order.setVoucherId(Long.valueOf(voucherId));
+        return order;
+    }
+
+    /**
+     * 查询消息在消费者pending中的投递次数 XPENDING stream.orders g1 first last count consumer
+     * 只查这个消费者的pending，区间内其它消费者的消息不会占用count；
+     * 区间内还有这个消费者的其它消息时，没查到的消息逐条查询
+     */
+    public Map<RecordId, Long> deliveryCounts(String consumerName, List<? extends MapRecord<String, ?, ?>> records) {
+        Map<RecordId, Long> counts = new HashMap<>(records.size());
+        if (records.isEmpty()) {
+            return counts;
+        }
+        Consumer consumer = Consumer.from(SECKILL_ORDER_GROUP, consumerName);
+        String first = records.get(0).getId().getValue();
+        String last = records.get(records.size() - 1).getId().getValue();
+        stringRedisTemplate.opsForStream()
+                .pending(SECKILL_ORDER_STREAM, consumer, Range.closed(first, last), records.size())
+                .forEach(p -> counts.put(p.getId(), p.getTotalDeliveryCount()));
+        for (MapRecord<String, ?, ?> record : records) {
+            if (counts.containsKey(record.getId())) {
+                continue;
+            }
+            String id = record.getId().getValue();
+            stringRedisTemplate.opsForStream()
+                    .pending(SECKILL_ORDER_STREAM, consumer, Range.closed(id, id), 1)
+                    .forEach(p -> counts.put(p.getId(), p.getTotalDeliveryCount()));
+        }
+        return counts;
+    }
+
+    /**
+     * 按时间顺序查看死信
+     */
+    public List<Map<String, Object>> list(int count) {
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                .range(SECKILL_ORDER_DLQ, Range.unbounded(), Limit.limit().count(count));
+        List<Map<String, Object>> result = new ArrayList<>();
+        if (records == null) {
+            return result;
+        }
+        for (MapRecord<String, Object, Object> record : records) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("id", record.getId().getValue());
+            record.getValue().forEach((k, v) -> item.put(String.valueOf(k), v));
+            result.add(item);
+        }
+        return result;
+    }
+
+    /**
+     * 把死信重新投递到订单队列，并从死信队列删除
+     * @return 是否找到了这条死信
+     */
+    public boolean replay(String id) {
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                .range(SECKILL_ORDER_DLQ, Range.closed(id, id));
+        if (records == null || records.isEmpty()) {
+            return false;
+        }
+        Map<Object, Object> value = new HashMap<>(records.get(0).getValue());
+        value.remove(FIELD_REASON);
+        value.remove(FIELD_ORIGINAL_ID);
+        value.remove(FIELD_DELIVERIES);
+        VoucherOrder order = orderOf(value);
+        if (order != null) {
+            voucherOrderMapper.deleteAbandoned(order.getId());
+        }
+        stringRedisTemplate.opsForStream().add(StreamRecords.mapBacked(value).withStreamKey(SECKILL_ORDER_STREAM));
+        stringRedisTemplate.opsForStream().delete(SECKILL_ORDER_DLQ, RecordId.of(id));
+        return true;
+    }
+}
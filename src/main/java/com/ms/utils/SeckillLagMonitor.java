@@ -0,0 +1,244 @@
+package com.ms.utils;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.RedisSystemException;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.ms.utils.RedisConstants.SECKILL_ORDER_GROUP;
+import static com.ms.utils.RedisConstants.SECKILL_ORDER_STREAM;
+
+/**
+ * 订单消息队列积压监控
+ * 定时读取 XINFO GROUPS，积压（未ACK + 未投递）超过阈值时让秒杀请求提前返回"系统繁忙"；
+ * 同时删除最小的pending id之前已经ACK的消息，保证redis内存有上限：
+ * redis 6.2+ 用 XTRIM MINID，更早的版本用lua脚本数出这些消息后 XTRIM MAXLEN。
+ * 进程内秒杀引擎（seckill.engine=local）不使用消息队列，不监控，由引擎的有界队列返回BUSY。
+ */
+@Slf4j
+@Component
+public class SeckillLagMonitor {
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final MeterRegistry meterRegistry;
+
+    @Value("${seckill.engine:redis}")
+    private String engine;
+
+    @Value("${seckill.backpressure.max-backlog:100000}")
+    private long maxBacklog;
+
+    @Value("${seckill.backpressure.refresh-millis:500}")
+    private long refreshMillis;
+
+    @Value("${seckill.backpressure.trim-seconds:10}")
+    private long trimSeconds;
+
+    /**
+     * 数出id小于ARGV[1]的消息（最多ARGV[2]条），按剩余长度 XTRIM MAXLEN，脚本内执行，不会误删新写入的消息
+     */
+    private static final DefaultRedisScript<Long> TRIM_SCRIPT = new DefaultRedisScript<>(
+            "local ids = redis.call('XRANGE', KEYS[1], '-', ARGV[1], 'COUNT', tonumber(ARGV[2]) + 1)\n" +
+            "local n = 0\n" +
+            "for _, e in ipairs(ids) do\n" +
+            "  if e[1] == ARGV[1] then break end\n" +
+            "  n = n + 1\n" +
+            "end\n" +
+            "n = math.min(n, tonumber(ARGV[2]))\n" +
+            "if n == 0 then return 0 end\n" +
+            "return redis.call('XTRIM', KEYS[1], 'MAXLEN', redis.call('XLEN', KEYS[1]) - n)",
+            Long.class);
+
+    /**
+     * lua修剪每次最多删除的消息数
+     */
+    private static final long TRIM_BATCH = 10000;
+
+    private final ScheduledExecutorService monitorExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    private volatile long pending;
+
+    /**
+     * 尚未投递给消费组的消息数
+     */
+    private volatile long lag;
+
+    private volatile long length;
+
+    private volatile boolean overloaded;
+
+    /**
+     * redis 6.2以下不支持 XTRIM MINID，改用lua脚本修剪
+     */
+    private volatile boolean minIdSupported = true;
+
+    public SeckillLagMonitor(StringRedisTemplate stringRedisTemplate, MeterRegistry meterRegistry) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    private void init() {
+        if ("local".equals(engine)) {
+            return;
+        }
+        Gauge.builder("seckill.order.stream.pending", this, m -> m.pending)
+                .description("已投递但未ACK的消息数").register(meterRegistry);
+        Gauge.builder("seckill.order.stream.lag", this, m -> m.lag)
+                .description("尚未投递给消费组的消息数").register(meterRegistry);
+        Gauge.builder("seckill.order.stream.length", this, m -> m.length)
+                .description("消息队列长度").register(meterRegistry);
+        Gauge.builder("seckill.order.overloaded", this, m -> m.overloaded ? 1 : 0)
+                .description("是否因积压拒绝秒杀请求").register(meterRegistry);
+        monitorExecutor.scheduleWithFixedDelay(this::refresh, 0, refreshMillis, TimeUnit.MILLISECONDS);
+        monitorExecutor.scheduleWithFixedDelay(this::trim, trimSeconds, trimSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        monitorExecutor.shutdown();
+    }
+
+    /**
+     * 积压是否超过阈值，只读本地变量
+     */
+    public boolean isOverloaded() {
+        return overloaded;
+    }
+
+    /**
+     * 积压 = 未ACK + 未投递，不使用队列长度（修剪失败时长度只增不减）
+     */
+    public long backlog() {
+        return pending + lag;
+    }
+
+    private void refresh() {
+        try {
+            //XINFO GROUPS stream.orders
+            StreamInfo.XInfoGroup group = stringRedisTemplate.opsForStream().groups(SECKILL_ORDER_STREAM).stream()
+                    .filter(g -> SECKILL_ORDER_GROUP.equals(g.groupName()))
+                    .findFirst()
+                    .orElse(null);
+            Long size = stringRedisTemplate.opsForStream().size(SECKILL_ORDER_STREAM);
+            length = size == null ? 0 : size;
+            if (group != null) {
+                pending = group.pendingCount();
+                //lag字段redis 7.0才有，删除过消息时也可能为空，这时数出最后投递的id之后的消息
+                Object rawLag = group.getRaw().get("lag");
+                lag = rawLag != null ? Long.parseLong(rawLag.toString())
+                        : undelivered(group.lastDeliveredId(), Math.max(1, maxBacklog - pending + 1));
+            }
+            boolean nowOverloaded = backlog() > maxBacklog;
+            if (nowOverloaded != overloaded) {
+                log.warn("订单队列积压{}，{}秒杀请求", backlog(), nowOverloaded ? "开始拒绝" : "恢复接收");
+            }
+            overloaded = nowOverloaded;
+        } catch (Exception e) {
+            log.debug("读取订单队列积压失败", e);
+        }
+    }
+
+    /**
+     * XRANGE stream.orders (lastDeliveredId + COUNT limit，超过limit时只需要知道已经超过阈值
+     */
+    private long undelivered(String lastDeliveredId, long limit) {
+        String start = nextId(lastDeliveredId);
+        List<?> entries = stringRedisTemplate.execute((RedisCallback<List<?>>) connection -> (List<?>) connection.execute(
+                "XRANGE", raw(SECKILL_ORDER_STREAM), raw(start), raw("+"), raw("COUNT"), raw(String.valueOf(limit))));
+        return entries == null ? 0 : entries.size();
+    }
+
+    /**
+     * 紧随其后的消息id，用于不包含起点的范围查询（"(" 前缀需要redis 6.2+）
+     */
+    private static String nextId(String id) {
+        int i = id.indexOf('-');
+        String ms = id.substring(0, i);
+        long seq = Long.parseLong(id.substring(i + 1));
+        return ms + "-" + (seq + 1);
+    }
+
+    /**
+     * 删除最小的pending id之前的消息，没有pending时删除到最后投递的id
+     */
+    private void trim() {
+        try {
+            PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP);
+            String minId;
+            if (summary.getTotalPendingMessages() > 0) {
+                minId = summary.minMessageId();
+            } else {
+                String lastDelivered = stringRedisTemplate.opsForStream().groups(SECKILL_ORDER_STREAM).stream()
+                        .filter(g -> SECKILL_ORDER_GROUP.equals(g.groupName()))
+                        .map(StreamInfo.XInfoGroup::lastDeliveredId)
+                        .findFirst()
+                        .orElse(null);
+                //最后投递的消息已经ACK，一并删除
+                minId = lastDelivered == null || "0-0".equals(lastDelivered) ? null : nextId(lastDelivered);
+            }
+            if (minId == null) {
+                return;
+            }
+            Object trimmed = minIdSupported ? trimByMinId(minId) : trimByMaxLen(minId);
+            log.debug("修剪订单队列{}条已确认的消息", trimmed);
+        } catch (Exception e) {
+            log.debug("修剪订单队列失败", e);
+        }
+    }
+
+    private Object trimByMinId(String minId) {
+        try {
+            return stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.execute("XTRIM",
+                    raw(SECKILL_ORDER_STREAM), raw("MINID"), raw("~"), raw(minId)));
+        } catch (RedisSystemException e) {
+            if (!isUnsupported(e)) {
+                throw e;
+            }
+            //XTRIM MINID需要redis 6.2+，之后改用lua脚本
+            log.warn("redis不支持XTRIM MINID，改用XTRIM MAXLEN修剪订单队列");
+            minIdSupported = false;
+            return trimByMaxLen(minId);
+        }
+    }
+
+    private Object trimByMaxLen(String minId) {
+        return stringRedisTemplate.execute(TRIM_SCRIPT, Collections.singletonList(SECKILL_ORDER_STREAM),
+                minId, String.valueOf(TRIM_BATCH));
+    }
+
+    /**
+     * 命令或参数不被识别，其它错误（连接中断、超时等）下次继续尝试
+     */
+    private static boolean isUnsupported(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            String message = t.getMessage();
+            if (message != null && (message.contains("syntax error") || message.contains("unknown")
+                    || message.contains("Unknown"))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static byte[] raw(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,179 @@
+package com.ms.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.ms.dto.Result;
+import com.ms.entity.VoucherOrder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static com.ms.utils.RedisConstants.SECKILL_RESULT_CHANNEL;
+import static com.ms.utils.RedisConstants.SECKILL_RESULT_KEY;
+
+/**
+ * 秒杀订单的异步处理结果
+ * 消费者落库后把每个订单的下单用户和最终状态写入 seckill:result:{orderId}（带过期时间），并整批发布到 seckill:channel:result。
+ * 查询状态的长轮询请求不占用线程，挂在本地等待表中，收到发布的结果后被唤醒。
+ */
+@Component
+public class SeckillOrderResults implements MessageListener {
+
+    /**
+     * 已落库
+     */
+    public static final String PERSISTED = "persisted";
+    /**
+     * 处理失败，已转入死信队列
+     */
+    public static final String FAILED = "failed";
+    /**
+     * 重复下单，被唯一索引拒绝
+     */
+    public static final String DUPLICATE = "duplicate";
+    /**
+     * 还在队列中等待处理
+     */
+    public static final String QUEUED = "queued";
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final RedisMessageListenerContainer listenerContainer;
+
+    @Value("${seckill.result.ttl-seconds:600}")
+    private long ttlSeconds;
+
+    @Value("${seckill.result.max-wait-seconds:30}")
+    private long maxWaitSeconds;
+
+    /**
+     * 订单id -> 等待结果的请求
+     */
+    private final Map<Long, Set<Waiter>> waiters = new ConcurrentHashMap<>();
+
+    public SeckillOrderResults(StringRedisTemplate stringRedisTemplate,
+                               RedisMessageListenerContainer listenerContainer) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.listenerContainer = listenerContainer;
+    }
+
+    @PostConstruct
+    private void init() {
+        listenerContainer.addMessageListener(this, new ChannelTopic(SECKILL_RESULT_CHANNEL));
+    }
+
+    /**
+     * 保存一批订单的结果并通知所有节点，一次pipeline
+     * 结果中带上下单用户，查询时只返回给本人
+     * @param stateOf 订单 -> 状态
+     */
+    public void publish(Collection<VoucherOrder> orders, Function<VoucherOrder, String> stateOf) {
+        if (orders.isEmpty()) {
+            return;
+        }
+        StringBuilder message = new StringBuilder();
+        Map<String, String> values = new HashMap<>(orders.size());
+        for (VoucherOrder order : orders) {
+            String value = order.getUserId() + ":" + stateOf.apply(order);
+            values.put(SECKILL_RESULT_KEY + order.getId(), value);
+            message.append(order.getId()).append(':').append(value).append(',');
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            values.forEach((key, value) -> conn.setEx(key, ttlSeconds, value));
+            conn.publish(SECKILL_RESULT_CHANNEL, message.toString());
+            return null;
+        });
+    }
+
+    public void publish(Long orderId, Long userId, String state) {
+        VoucherOrder order = new VoucherOrder();
+        order.setId(orderId);
+        order.setUserId(userId);
+        publish(Collections.singletonList(order), o -> state);
+    }
+
+    /**
+     * 长轮询订单状态，已有结果立即返回，否则等待结果发布或超时返回queued
+     * 结果不属于userId时返回订单不存在；还没有结果时无法判断归属，只返回queued
+     * @param timeoutSeconds 最长等待秒数，限制在1秒到max-wait-seconds之间
+     */
+    public DeferredResult<Result> await(Long orderId, Long userId, long timeoutSeconds) {
+        //0表示不超时，至少等1秒
+        long timeout = TimeUnit.SECONDS.toMillis(Math.max(1, Math.min(timeoutSeconds, maxWaitSeconds)));
+        DeferredResult<Result> deferred = new DeferredResult<>(timeout, Result.ok(QUEUED));
+        Waiter waiter = new Waiter(userId, deferred);
+        //1.先登记再查询，防止两步之间结果发布导致错过通知
+        Set<Waiter> set = waiters.computeIfAbsent(orderId, id -> ConcurrentHashMap.newKeySet());
+        set.add(waiter);
+        deferred.onCompletion(() -> removeWaiter(orderId, waiter));
+        //2.查询已有的结果
+        String value = stringRedisTemplate.opsForValue().get(SECKILL_RESULT_KEY + orderId);
+        if (StrUtil.isNotBlank(value)) {
+            deferred.setResult(resultFor(userId, value));
+        }
+        return deferred;
+    }
+
+    /**
+     * 结果是 userId:state，旧格式只有state
+     */
+    private static Result resultFor(Long userId, String value) {
+        int i = value.indexOf(':');
+        if (i > 0 && !value.substring(0, i).equals(String.valueOf(userId))) {
+            return Result.fail("订单不存在！");
+        }
+        return Result.ok(value.substring(i + 1));
+    }
+
+    private void removeWaiter(Long orderId, Waiter waiter) {
+        waiters.computeIfPresent(orderId, (id, set) -> {
+            set.remove(waiter);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        for (String item : StrUtil.split(body, ',')) {
+            int i = item.indexOf(':');
+            if (i <= 0) {
+                continue;
+            }
+            Set<Waiter> set = waiters.remove(Long.valueOf(item.substring(0, i)));
+            if (set == null) {
+                continue;
+            }
+            String value = item.substring(i + 1);
+            set.forEach(waiter -> waiter.deferred.setResult(resultFor(waiter.userId, value)));
+        }
+    }
+
+    private static class Waiter {
+        private final Long userId;
+        private final DeferredResult<Result> deferred;
+
+        private Waiter(Long userId, DeferredResult<Result> deferred) {
+            this.userId = userId;
+            this.deferred = deferred;
+        }
+    }
+}
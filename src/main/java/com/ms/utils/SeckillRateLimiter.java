@@ -0,0 +1,216 @@
+package com.ms.utils;
+
+import cn.hutool.core.util.RandomUtil;
+import com.ms.dto.SeckillLimitDTO;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.ms.utils.RedisConstants.SECKILL_LIMIT_CONF_KEY;
+import static com.ms.utils.RedisConstants.SECKILL_LIMIT_KEY;
+
+/**
+ * 秒杀请求两级限流
+ * 1.本地令牌桶：每个节点每张券一个，无锁实现，挡住大部分洪峰流量，不访问redis；
+ * 2.redis滑动窗口：每个用户每张券一个，一次lua调用完成，限制单个用户（脚本、机器人）的请求频率。
+ * 限流参数默认读配置文件，可以按券保存在 seckill:limit:conf:{voucherId} 中，各节点定时重新加载。
+ */
+@Component
+public class SeckillRateLimiter {
+
+    private static final DefaultRedisScript<Long> LIMIT_SCRIPT;
+    static {
+        LIMIT_SCRIPT = new DefaultRedisScript<>();
+        LIMIT_SCRIPT.setLocation(new ClassPathResource("seckill_limit.lua"));
+        LIMIT_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final MeterRegistry meterRegistry;
+
+    @Value("${seckill.rate-limit.local-qps:2000}")
+    private int defaultLocalQps;
+
+    @Value("${seckill.rate-limit.local-burst:200}")
+    private int defaultLocalBurst;
+
+    @Value("${seckill.rate-limit.user-limit:5}")
+    private int defaultUserLimit;
+
+    @Value("${seckill.rate-limit.user-window-millis:1000}")
+    private long defaultUserWindowMillis;
+
+    @Value("${seckill.rate-limit.conf-refresh-seconds:10}")
+    private long confRefreshSeconds;
+
+    private final Map<Long, VoucherLimit> limits = new ConcurrentHashMap<>();
+
+    public SeckillRateLimiter(StringRedisTemplate stringRedisTemplate, MeterRegistry meterRegistry) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * 本地令牌桶限流，不访问redis
+     */
+    public boolean tryAcquireLocal(Long voucherId) {
+        VoucherLimit limit = limitOf(voucherId);
+        if (limit.bucket == null || limit.bucket.tryAcquire()) {
+            return true;
+        }
+        limit.localRejected.increment();
+        return false;
+    }
+
+    /**
+     * 用户滑动窗口限流，一次lua调用
+     */
+    public boolean tryAcquireUser(Long voucherId, Long userId) {
+        VoucherLimit limit = limitOf(voucherId);
+        if (limit.userLimit <= 0) {
+            return true;
+        }
+        Long allowed = stringRedisTemplate.execute(
+                LIMIT_SCRIPT,
+                Collections.singletonList(SECKILL_LIMIT_KEY + voucherId + ":" + userId),
+                String.valueOf(System.currentTimeMillis()), String.valueOf(limit.userWindowMillis),
+                String.valueOf(limit.userLimit), RandomUtil.randomString(12)
+        );
+        if (allowed != null && allowed == 1) {
+            return true;
+        }
+        limit.userRejected.increment();
+        return false;
+    }
+
+    /**
+     * 保存券的限流配置，各节点在conf-refresh-seconds内生效
+     */
+    public void saveConfig(Long voucherId, SeckillLimitDTO dto) {
+        Map<String, String> conf = new HashMap<>();
+        if (dto.getLocalQps() != null) {
+            conf.put("localQps", dto.getLocalQps().toString());
+        }
+        if (dto.getLocalBurst() != null) {
+            conf.put("localBurst", dto.getLocalBurst().toString());
+        }
+        if (dto.getUserLimit() != null) {
+            conf.put("userLimit", dto.getUserLimit().toString());
+        }
+        if (dto.getUserWindowMillis() != null) {
+            conf.put("userWindowMillis", dto.getUserWindowMillis().toString());
+        }
+        if (!conf.isEmpty()) {
+            stringRedisTemplate.opsForHash().putAll(SECKILL_LIMIT_CONF_KEY + voucherId, conf);
+        }
+        limits.remove(voucherId);
+    }
+
+    private VoucherLimit limitOf(Long voucherId) {
+        VoucherLimit limit = limits.computeIfAbsent(voucherId, id -> load(id, null));
+        if (limit.isStale() && limit.reloading.compareAndSet(false, true)) {
+            // 只有一个线程重新加载，其它线程继续使用旧配置
+            try {
+                limits.put(voucherId, load(voucherId, limit));
+            } catch (RuntimeException e) {
+                limit.reloading.set(false);
+            }
+        }
+        return limit;
+    }
+
+    private VoucherLimit load(Long voucherId, VoucherLimit old) {
+        Map<Object, Object> conf = stringRedisTemplate.opsForHash().entries(SECKILL_LIMIT_CONF_KEY + voucherId);
+        int localQps = intOf(conf.get("localQps"), defaultLocalQps);
+        int localBurst = intOf(conf.get("localBurst"), defaultLocalBurst);
+        int userLimit = intOf(conf.get("userLimit"), defaultUserLimit);
+        long userWindowMillis = conf.get("userWindowMillis") == null
+                ? defaultUserWindowMillis : Long.parseLong(conf.get("userWindowMillis").toString());
+        // 令牌桶参数不变时沿用原来的桶，保留已消耗的令牌
+        TokenBucket bucket = old != null && old.bucket != null
+                && old.bucket.qps == localQps && old.bucket.burst == localBurst
+                ? old.bucket
+                : (localQps > 0 ? new TokenBucket(localQps, Math.max(localBurst, 1)) : null);
+        String voucher = voucherId.toString();
+        return new VoucherLimit(bucket, userLimit, userWindowMillis,
+                meterRegistry.counter("seckill.rate-limit.rejected", "tier", "local", "voucher", voucher),
+                meterRegistry.counter("seckill.rate-limit.rejected", "tier", "user", "voucher", voucher),
+                System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(confRefreshSeconds));
+    }
+
+    private static int intOf(Object value, int defaultValue) {
+        return value == null ? defaultValue : Integer.parseInt(value.toString());
+    }
+
+    private static class VoucherLimit {
+        private final TokenBucket bucket;
+        private final int userLimit;
+        private final long userWindowMillis;
+        private final Counter localRejected;
+        private final Counter userRejected;
+        private final long expireAt;
+        private final AtomicBoolean reloading = new AtomicBoolean(false);
+
+        private VoucherLimit(TokenBucket bucket, int userLimit, long userWindowMillis,
+                             Counter localRejected, Counter userRejected, long expireAt) {
+            this.bucket = bucket;
+            this.userLimit = userLimit;
+            this.userWindowMillis = userWindowMillis;
+            this.localRejected = localRejected;
+            this.userRejected = userRejected;
+            this.expireAt = expireAt;
+        }
+
+        private boolean isStale() {
+            return System.currentTimeMillis() > expireAt;
+        }
+    }
+
+    /**
+     * 无锁令牌桶（GCRA算法）
+     * 只保存一个"理论到达时间"tat，每放行一个请求tat向后推一个发放间隔，
+     * tat超前当前时间超过突发容量时拒绝，放行只需要一次CAS。
+     */
+    static class TokenBucket {
+        private final int qps;
+        private final int burst;
+        private final long intervalNanos;
+        private final long toleranceNanos;
+        private final AtomicLong tat;
+
+        TokenBucket(int qps, int burst) {
+            this.qps = qps;
+            this.burst = burst;
+            this.intervalNanos = TimeUnit.SECONDS.toNanos(1) / qps;
+            this.toleranceNanos = intervalNanos * (burst - 1);
+            this.tat = new AtomicLong(System.nanoTime());
+        }
+
+        boolean tryAcquire() {
+            long now = System.nanoTime();
+            while (true) {
+                long current = tat.get();
+                long base = current - now > 0 ? current : now;
+                if (base - now > toleranceNanos) {
+                    return false;
+                }
+                if (tat.compareAndSet(current, base + intervalNanos)) {
+                    return true;
+                }
+            }
+        }
+    }
+}
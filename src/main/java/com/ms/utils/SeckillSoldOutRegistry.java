@@ -0,0 +1,113 @@
+package com.ms.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.ms.utils.RedisConstants.SECKILL_RESTOCK_CHANNEL;
+import static com.ms.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+/**
+ * 本地售罄标记
+ * 券售罄后，后续请求在本节点直接返回库存不足，不再访问redis。
+ * 售罄和补库存通过redis发布订阅通知到所有节点。
+ */
+@Slf4j
+@Component
+public class SeckillSoldOutRegistry implements MessageListener {
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final RedisMessageListenerContainer listenerContainer;
+
+    /**
+     * 券id -> 售罄标记的过期时间
+     * 标记设置有效期，防止错过补库存的通知后一直拒绝请求
+     */
+    private final Map<Long, Long> soldOut = new ConcurrentHashMap<>();
+
+    @Value("${seckill.sold-out.recheck-seconds:30}")
+    private long recheckSeconds;
+
+    public SeckillSoldOutRegistry(StringRedisTemplate stringRedisTemplate,
+                                  RedisMessageListenerContainer listenerContainer) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.listenerContainer = listenerContainer;
+    }
+
+    @PostConstruct
+    private void init() {
+        listenerContainer.addMessageListener(this, new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+        listenerContainer.addMessageListener(this, new ChannelTopic(SECKILL_RESTOCK_CHANNEL));
+    }
+
+    /**
+     * 判断券是否已经售罄，只读本地内存
+     */
+    public boolean isSoldOut(Long voucherId) {
+        Long expireAt = soldOut.get(voucherId);
+        if (expireAt == null) {
+            return false;
+        }
+        if (expireAt > System.currentTimeMillis()) {
+            return true;
+        }
+        // 标记过期，放行请求到redis重新确认
+        soldOut.remove(voucherId, expireAt);
+        return false;
+    }
+
+    /**
+     * 标记售罄并通知其它节点，本地已有未过期的标记时不重复通知
+     * 售罄后并发的请求都会走到这里，只有第一个请求发布消息
+     */
+    public void markSoldOut(Long voucherId) {
+        if (mark(voucherId)) {
+            stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, voucherId.toString());
+        }
+    }
+
+    /**
+     * 清除售罄标记并通知其它节点，补库存后调用
+     */
+    public void reset(Long voucherId) {
+        soldOut.remove(voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_RESTOCK_CHANNEL, voucherId.toString());
+    }
+
+    /**
+     * @return 是否是新的标记，已有的标记过期时替换，同样算新的标记
+     */
+    private boolean mark(Long voucherId) {
+        long now = System.currentTimeMillis();
+        long expireAt = now + TimeUnit.SECONDS.toMillis(recheckSeconds);
+        Long previous = soldOut.putIfAbsent(voucherId, expireAt);
+        if (previous == null) {
+            return true;
+        }
+        return previous <= now && soldOut.replace(voucherId, previous, expireAt);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String channel = new String(message.getChannel(), StandardCharsets.UTF_8);
+        Long voucherId = Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8));
+        if (SECKILL_SOLD_OUT_CHANNEL.equals(channel)) {
+            mark(voucherId);
+        } else {
+            soldOut.remove(voucherId);
+        }
+        log.debug("券{}的售罄状态变更：{}", voucherId, channel);
+    }
+}
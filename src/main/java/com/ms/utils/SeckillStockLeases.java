@@ -0,0 +1,350 @@
+package com.ms.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.ms.utils.RedisConstants.*;
+
+/**
+ * 节点本地租用库存
+ * 超大秒杀券每次请求都执行lua脚本会让单个库存key成为瓶颈。租用模式下每个节点从 seckill:stock:{voucherId}
+ * 一次扣出chunk个库存，在本地用原子计数器售卖，本地库存低于低水位时异步续租，只有续租才访问库存key；
+ * 一人一单按userId分区到 seckill:order:{voucherId:p}，分散在集群的不同节点上。
+ * 节点空闲或停机时把没卖完的库存归还，节点宕机时租用的库存会少卖，但不会超卖。
+ */
+@Slf4j
+@Component
+public class SeckillStockLeases {
+
+    public static final int SOLD_OUT = 1;
+
+    /**
+     * 没有开启租用的券不长期缓存，间隔一段时间重新查询，存储被清空后恢复的配置能及时生效
+     */
+    private static final long CONF_RECHECK_MILLIS = 1000;
+
+    private static final DefaultRedisScript<List<Long>> LEASE_SCRIPT;
+    private static final DefaultRedisScript<Long> RETURN_SCRIPT;
+    static {
+        //lua返回的整数数组，List.class没有泛型参数，这里转换一次
+        @SuppressWarnings("unchecked")
+        Class<List<Long>> listType = (Class<List<Long>>) (Class<?>) List.class;
+        LEASE_SCRIPT = new DefaultRedisScript<>();
+        LEASE_SCRIPT.setLocation(new ClassPathResource("seckill_lease.lua"));
+        LEASE_SCRIPT.setResultType(listType);
+        RETURN_SCRIPT = new DefaultRedisScript<>();
+        RETURN_SCRIPT.setLocation(new ClassPathResource("seckill_lease_return.lua"));
+        RETURN_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    @Value("${seckill.lease.dedup-partitions:16}")
+    private int defaultPartitions;
+
+    @Value("${seckill.lease.low-water-ratio:0.2}")
+    private double lowWaterRatio;
+
+    @Value("${seckill.lease.idle-seconds:30}")
+    private long idleSeconds;
+
+    @Value("${seckill.lease.sold-out-recheck-millis:500}")
+    private long soldOutRecheckMillis;
+
+    /**
+     * 券的租用配置，创建后不再变化，本地缓存
+     */
+    private final Map<Long, LeaseConf> confs = new ConcurrentHashMap<>();
+
+    /**
+     * 没有开启租用的券 -> 下次重新查询的时间
+     */
+    private final Map<Long, Long> disabledUntil = new ConcurrentHashMap<>();
+
+    private final Map<Long, Lease> leases = new ConcurrentHashMap<>();
+
+    private final ExecutorService refillExecutor = Executors.newSingleThreadExecutor();
+
+    private final ScheduledExecutorService idleExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    public SeckillStockLeases(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    @PostConstruct
+    private void init() {
+        idleExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                returnIdle();
+            } catch (Exception e) {
+                log.error("归还空闲的租用库存异常！", e);
+            }
+        }, idleSeconds, idleSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 停机时归还所有未卖完的库存
+     */
+    @PreDestroy
+    private void destroy() {
+        idleExecutor.shutdown();
+        refillExecutor.shutdown();
+        leases.forEach((voucherId, lease) -> giveBackAll(voucherId, lease));
+    }
+
+    /**
+     * 新券的一人一单分区数，和租用数量一起保存到数据库
+     */
+    public int defaultPartitions() {
+        return defaultPartitions;
+    }
+
+    /**
+     * 开启券的租用模式，预热时由数据库中保存的配置写入
+     * @param chunk 每次租用的库存数量
+     * @param partitions 一人一单的分区数
+     */
+    public void saveConfig(Long voucherId, int chunk, int partitions) {
+        Map<String, String> conf = new HashMap<>(2);
+        conf.put("chunk", String.valueOf(chunk));
+        conf.put("partitions", String.valueOf(partitions));
+        stringRedisTemplate.opsForHash().putAll(SECKILL_LEASE_KEY + voucherId, conf);
+        confs.put(voucherId, new LeaseConf(chunk, partitions));
+        disabledUntil.remove(voucherId);
+    }
+
+    /**
+     * 券是否开启了租用模式
+     */
+    public boolean isEnabled(Long voucherId) {
+        return confOf(voucherId).chunk > 0;
+    }
+
+    /**
+     * 从本地租用的库存中扣减一个，本地不足时同步续租
+     * @return 0：成功；1：售罄；3：未开始；4：已结束；5：未预热或已清理
+     */
+    public int acquire(Long voucherId) {
+        LeaseConf conf = confOf(voucherId);
+        Lease lease = leases.computeIfAbsent(voucherId, id -> new Lease());
+        long now = System.currentTimeMillis();
+        lease.lastUsed = now;
+        if (now > lease.endMillis) {
+            return 4;
+        }
+        //1.本地扣减，只有一次CAS
+        if (tryTake(voucherId, lease, conf)) {
+            return 0;
+        }
+        //2.本地售罄，刚确认过总库存也售罄时直接返回
+        if (now < lease.soldOutUntil) {
+            return SOLD_OUT;
+        }
+        //3.同步续租，同一时刻只有一个线程访问redis
+        synchronized (lease) {
+            if (tryTake(voucherId, lease, conf)) {
+                return 0;
+            }
+            if (System.currentTimeMillis() < lease.soldOutUntil) {
+                return SOLD_OUT;
+            }
+            int r = lease(voucherId, lease, conf);
+            if (r != 0) {
+                return r;
+            }
+        }
+        return tryTake(voucherId, lease, conf) ? 0 : SOLD_OUT;
+    }
+
+    /**
+     * 下单失败时把扣减的库存还给本地
+     */
+    public void giveBack(Long voucherId, int count) {
+        Lease lease = leases.get(voucherId);
+        if (lease == null) {
+            returnStock(voucherId, count);
+            return;
+        }
+        lease.remaining.addAndGet(count);
+    }
+
+    /**
+     * 记录用户已下单 SADD seckill:order:{voucherId:p} userId
+     * @return false表示重复下单
+     */
+    public boolean markOrdered(Long voucherId, Long userId) {
+        Long added = stringRedisTemplate.opsForSet().add(orderKey(voucherId, userId), userId.toString());
+        return added != null && added > 0;
+    }
+
+    public void unmarkOrdered(Long voucherId, Long userId) {
+        stringRedisTemplate.opsForSet().remove(orderKey(voucherId, userId), userId.toString());
+    }
+
+    /**
+     * 活动结束后删除一人一单分区和租用配置，本地没卖完的库存直接丢弃
+     * @return 下单的用户数
+     */
+    public long remove(Long voucherId) {
+        LeaseConf conf = confOf(voucherId);
+        long ordered = 0;
+        List<String> keys = new ArrayList<>(conf.partitions + 1);
+        for (int i = 0; i < conf.partitions; i++) {
+            String key = SeckillStockShards.orderKey(voucherId, i);
+            Long size = stringRedisTemplate.opsForSet().size(key);
+            ordered += size == null ? 0 : size;
+            keys.add(key);
+        }
+        keys.add(SECKILL_LEASE_KEY + voucherId);
+        stringRedisTemplate.unlink(keys);
+        leases.remove(voucherId);
+        confs.remove(voucherId);
+        disabledUntil.remove(voucherId);
+        return ordered;
+    }
+
+    /**
+     * 用户所在的一人一单分区
+     */
+    public String orderKey(Long voucherId, Long userId) {
+        return SeckillStockShards.orderKey(voucherId, Math.floorMod(userId.hashCode(), confOf(voucherId).partitions));
+    }
+
+    private LeaseConf confOf(Long voucherId) {
+        LeaseConf cached = confs.get(voucherId);
+        if (cached != null) {
+            return cached;
+        }
+        long now = System.currentTimeMillis();
+        Long until = disabledUntil.get(voucherId);
+        if (until != null && now < until) {
+            return LeaseConf.DISABLED;
+        }
+        List<Object> values = stringRedisTemplate.opsForHash()
+                .multiGet(SECKILL_LEASE_KEY + voucherId, Arrays.asList("chunk", "partitions"));
+        if (values.get(0) == null) {
+            disabledUntil.put(voucherId, now + CONF_RECHECK_MILLIS);
+            return LeaseConf.DISABLED;
+        }
+        LeaseConf conf = new LeaseConf(Integer.parseInt(values.get(0).toString()), Integer.parseInt(values.get(1).toString()));
+        confs.put(voucherId, conf);
+        disabledUntil.remove(voucherId);
+        return conf;
+    }
+
+    private boolean tryTake(Long voucherId, Lease lease, LeaseConf conf) {
+        while (true) {
+            long n = lease.remaining.get();
+            if (n <= 0) {
+                return false;
+            }
+            if (lease.remaining.compareAndSet(n, n - 1)) {
+                if (n - 1 <= conf.chunk * lowWaterRatio) {
+                    refillAsync(voucherId, lease, conf);
+                }
+                return true;
+            }
+        }
+    }
+
+    private void refillAsync(Long voucherId, Lease lease, LeaseConf conf) {
+        if (System.currentTimeMillis() < lease.soldOutUntil || !lease.refilling.compareAndSet(false, true)) {
+            return;
+        }
+        refillExecutor.execute(() -> {
+            try {
+                synchronized (lease) {
+                    if (lease.remaining.get() <= conf.chunk * lowWaterRatio) {
+                        lease(voucherId, lease, conf);
+                    }
+                }
+            } catch (Exception e) {
+                log.error("续租券{}的库存失败", voucherId, e);
+            } finally {
+                lease.refilling.set(false);
+            }
+        });
+    }
+
+    /**
+     * 从总库存租用一批 seckill_lease.lua，调用方持有lease的锁
+     */
+    private int lease(Long voucherId, Lease lease, LeaseConf conf) {
+        List<Long> result = stringRedisTemplate.execute(
+                LEASE_SCRIPT,
+                Arrays.asList(SECKILL_STOCK_KEY + voucherId, SECKILL_WINDOW_KEY + voucherId),
+                String.valueOf(conf.chunk)
+        );
+        long take = result.get(0);
+        long end = result.get(1);
+        if (end > 0) {
+            lease.endMillis = end;
+        }
+        if (take < 0) {
+            return (int) -take;
+        }
+        if (take == 0) {
+            lease.soldOutUntil = System.currentTimeMillis() + soldOutRecheckMillis;
+            return SOLD_OUT;
+        }
+        lease.remaining.addAndGet(take);
+        log.debug("节点租用券{}的库存{}个", voucherId, take);
+        return 0;
+    }
+
+    private void returnIdle() {
+        long idleBefore = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(idleSeconds);
+        leases.forEach((voucherId, lease) -> {
+            if (lease.lastUsed < idleBefore || System.currentTimeMillis() > lease.endMillis) {
+                giveBackAll(voucherId, lease);
+            }
+        });
+    }
+
+    private void giveBackAll(Long voucherId, Lease lease) {
+        long n = lease.remaining.getAndSet(0);
+        if (n > 0) {
+            returnStock(voucherId, n);
+        }
+    }
+
+    private void returnStock(Long voucherId, long count) {
+        Long stock = stringRedisTemplate.execute(RETURN_SCRIPT,
+                Collections.singletonList(SECKILL_STOCK_KEY + voucherId), String.valueOf(count));
+        log.debug("归还券{}的库存{}个，当前总库存{}", voucherId, count, stock);
+    }
+
+    private static class LeaseConf {
+        private static final LeaseConf DISABLED = new LeaseConf(0, 1);
+        private final int chunk;
+        private final int partitions;
+
+        private LeaseConf(int chunk, int partitions) {
+            this.chunk = chunk;
+            this.partitions = partitions;
+        }
+    }
+
+    private static class Lease {
+        private final AtomicLong remaining = new AtomicLong();
+        private final AtomicBoolean refilling = new AtomicBoolean(false);
+        private volatile long lastUsed = System.currentTimeMillis();
+        private volatile long endMillis = Long.MAX_VALUE;
+        private volatile long soldOutUntil;
+    }
+}
@@ -0,0 +1,220 @@
+package com.ms.utils;
+
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.ms.utils.RedisConstants.*;
+
+/**
+ * 秒杀库存分片
+ * 热点券的库存被拆成N个分片：seckill:stock:{voucherId:i}、seckill:order:{voucherId:i}、seckill:window:{voucherId:i}，
+ * 每个分片的key带有相同的hash tag，在redis集群中落在同一个slot，不同分片可以分散到不同节点。
+ * 用户按userId路由到固定的主分片，一人一单只记录在主分片的订单key中；主分片售罄时先在主分片占住一人一单，
+ * 再依次到其它分片只扣库存，全部售罄时移除占用。
+ */
+@Component
+public class SeckillStockShards {
+
+    /**
+     * 所有分片都没有库存
+     */
+    public static final int SOLD_OUT = 1;
+
+    /**
+     * 没有分片的券不长期缓存，间隔一段时间重新查询，存储被清空后恢复的分片数能及时生效
+     */
+    private static final long COUNT_RECHECK_MILLIS = 1000;
+
+    private static final DefaultRedisScript<Long> SHARD_SCRIPT;
+    static {
+        SHARD_SCRIPT = new DefaultRedisScript<>();
+        SHARD_SCRIPT.setLocation(new ClassPathResource("seckill_shard.lua"));
+        SHARD_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 券的分片数，创建后不再变化，本地缓存避免每次请求都查redis
+     */
+    private final Map<Long, Integer> shardCounts = new ConcurrentHashMap<>();
+
+    /**
+     * 没有分片的券 -> 下次重新查询的时间
+     */
+    private final Map<Long, Long> unshardedUntil = new ConcurrentHashMap<>();
+
+    public SeckillStockShards(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    public static String stockKey(Long voucherId, int shard) {
+        return SECKILL_STOCK_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    public static String orderKey(Long voucherId, int shard) {
+        return SECKILL_ORDER_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    public static String windowKey(Long voucherId, int shard) {
+        return SECKILL_WINDOW_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    /**
+     * 预加载脚本 SCRIPT LOAD，活动开始后的第一批请求直接EVALSHA命中
+     */
+    public void loadScript() {
+        stringRedisTemplate.execute((RedisCallback<String>) connection ->
+                connection.scriptingCommands().scriptLoad(SHARD_SCRIPT.getScriptAsString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * 记录券的分片数，预热时由数据库中保存的分片数写入，再按分片数初始化库存
+     */
+    public void saveShardCount(Long voucherId, int shards) {
+        stringRedisTemplate.opsForValue().set(SECKILL_SHARDS_KEY + voucherId, String.valueOf(shards));
+        shardCounts.put(voucherId, shards);
+        unshardedUntil.remove(voucherId);
+    }
+
+    /**
+     * 保存分片库存，库存平均分配，余数分给前面的分片
+     * 已存在的分片不覆盖，重复预热不会把卖出的库存加回来
+     */
+    public void init(Long voucherId, int stock, int shards) {
+        for (int i = 0; i < shards; i++) {
+            int shardStock = stock / shards + (i < stock % shards ? 1 : 0);
+            stringRedisTemplate.opsForValue().setIfAbsent(stockKey(voucherId, i), String.valueOf(shardStock));
+        }
+        saveShardCount(voucherId, shards);
+    }
+
+    /**
+     * 在每个分片上保存秒杀时间窗口（毫秒时间戳）
+     */
+    public void initWindow(Long voucherId, int shards, long beginMillis, long endMillis) {
+        Map<String, String> window = new HashMap<>(2);
+        window.put("begin", String.valueOf(beginMillis));
+        window.put("end", String.valueOf(endMillis));
+        for (int i = 0; i < shards; i++) {
+            stringRedisTemplate.opsForHash().putAll(windowKey(voucherId, i), window);
+        }
+    }
+
+    /**
+     * 删除所有分片的库存、订单和时间窗口
+     * @return 删除前剩余的库存
+     */
+    public long remove(Long voucherId, int shards) {
+        long remaining = 0;
+        List<String> keys = new ArrayList<>(shards * 3 + 1);
+        for (int i = 0; i < shards; i++) {
+            String stock = stringRedisTemplate.opsForValue().get(stockKey(voucherId, i));
+            remaining += stock == null ? 0 : Long.parseLong(stock);
+            keys.add(stockKey(voucherId, i));
+            keys.add(orderKey(voucherId, i));
+            keys.add(windowKey(voucherId, i));
+        }
+        keys.add(SECKILL_SHARDS_KEY + voucherId);
+        //UNLINK在后台线程释放大集合的内存，不阻塞redis
+        stringRedisTemplate.unlink(keys);
+        shardCounts.remove(voucherId);
+        unshardedUntil.remove(voucherId);
+        return remaining;
+    }
+
+    /**
+     * 补充分片库存，同样平均分配到各个分片
+     */
+    public void addStock(Long voucherId, int count, int shards) {
+        for (int i = 0; i < shards; i++) {
+            int shardCount = count / shards + (i < count % shards ? 1 : 0);
+            if (shardCount > 0) {
+                stringRedisTemplate.opsForValue().increment(stockKey(voucherId, i), shardCount);
+            }
+        }
+    }
+
+    /**
+     * 查询券的分片数，没有分片返回1
+     */
+    public int shardCount(Long voucherId) {
+        Integer cached = shardCounts.get(voucherId);
+        if (cached != null) {
+            return cached;
+        }
+        long now = System.currentTimeMillis();
+        Long until = unshardedUntil.get(voucherId);
+        if (until != null && now < until) {
+            return 1;
+        }
+        String shards = stringRedisTemplate.opsForValue().get(SECKILL_SHARDS_KEY + voucherId);
+        if (shards == null) {
+            unshardedUntil.put(voucherId, now + COUNT_RECHECK_MILLIS);
+            return 1;
+        }
+        int count = Integer.parseInt(shards);
+        shardCounts.put(voucherId, count);
+        unshardedUntil.remove(voucherId);
+        return count;
+    }
+
+    /**
+     * 在用户的主分片判断一人一单并扣减库存，主分片售罄则探测其它分片
+     * @return 0：成功；1：所有分片售罄；2：重复下单；3：未开始；4：已结束；5：未预热或已清理
+     */
+    public int reserve(Long voucherId, Long userId, int shards) {
+        int home = Math.floorMod(userId.hashCode(), shards);
+        int r = execute(voucherId, home, userId, false);
+        if (r != SOLD_OUT) {
+            return r;
+        }
+        //主分片售罄，一人一单已经占住，其它分片只扣库存
+        try {
+            for (int i = 1; i < shards; i++) {
+                r = execute(voucherId, (home + i) % shards, userId, true);
+                if (r != SOLD_OUT) {
+                    break;
+                }
+            }
+        } catch (RuntimeException e) {
+            stringRedisTemplate.opsForSet().remove(orderKey(voucherId, home), userId.toString());
+            throw e;
+        }
+        if (r != 0) {
+            stringRedisTemplate.opsForSet().remove(orderKey(voucherId, home), userId.toString());
+        }
+        return r;
+    }
+
+    private int execute(Long voucherId, int shard, Long userId, boolean stockOnly) {
+        Long result = stringRedisTemplate.execute(
+                SHARD_SCRIPT,
+                Arrays.asList(stockKey(voucherId, shard), orderKey(voucherId, shard), windowKey(voucherId, shard)),
+                userId.toString(), stockOnly ? "1" : "0"
+        );
+        return result.intValue();
+    }
+
+    /**
+     * 消息投递失败时归还库存，一人一单只在主分片，库存归还到主分片
+     */
+    public void release(Long voucherId, Long userId, int shards) {
+        int home = Math.floorMod(userId.hashCode(), shards);
+        for (int i = 0; i < shards; i++) {
+            int shard = (home + i) % shards;
+            Long removed = stringRedisTemplate.opsForSet().remove(orderKey(voucherId, shard), userId.toString());
+            if (removed != null && removed > 0) {
+                stringRedisTemplate.opsForValue().increment(stockKey(voucherId, shard));
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package com.ms.utils;
+
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.crypto.digest.HMac;
+import cn.hutool.crypto.digest.HmacAlgorithm;
+import com.ms.dto.WaitingRoomDTO;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.ms.utils.RedisConstants.SECKILL_ROOM_KEY;
+
+/**
+ * 秒杀等候室
+ * 开启等候室的券，用户先进入排队队列 seckill:room:{voucherId}:queue（score为排队序号），
+ * 各节点按固定周期竞争执行放行脚本，每个周期只有一个节点把已放行序号 seckill:room:{voucherId}:admitted 后移（不超过队尾），
+ * 序号不大于已放行序号的用户拿到带HMAC签名的短期令牌，下单时在本地校验令牌，不访问redis。
+ * 未放行的用户轮询排队位置，只读一个ZSCORE和一个GET。
+ */
+@Slf4j
+@Component
+public class SeckillWaitingRoom {
+
+    private static final DefaultRedisScript<List<Long>> JOIN_SCRIPT;
+    private static final DefaultRedisScript<Long> ADMIT_SCRIPT;
+    static {
+        //lua返回的整数数组，List.class没有泛型参数，这里转换一次
+        @SuppressWarnings("unchecked")
+        Class<List<Long>> listType = (Class<List<Long>>) (Class<?>) List.class;
+        JOIN_SCRIPT = new DefaultRedisScript<>();
+        JOIN_SCRIPT.setLocation(new ClassPathResource("seckill_room.lua"));
+        JOIN_SCRIPT.setResultType(listType);
+        ADMIT_SCRIPT = new DefaultRedisScript<>();
+        ADMIT_SCRIPT.setLocation(new ClassPathResource("seckill_room_admit.lua"));
+        ADMIT_SCRIPT.setResultType(Long.class);
+    }
+
+    private static final int MIN_SECRET_LENGTH = 32;
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 准入令牌的签名密钥，没有默认值，各节点必须配置相同的密钥；未配置时不能开启等候室
+     */
+    @Value("${seckill.waiting-room.secret:}")
+    private String secret;
+
+    @Value("${seckill.waiting-room.token-ttl-seconds:30}")
+    private long tokenTtlSeconds;
+
+    @Value("${seckill.waiting-room.tick-millis:1000}")
+    private long tickMillis;
+
+    /**
+     * 券每秒放行的人数，0表示没有开启等候室，创建后不再变化，本地缓存
+     */
+    private final Map<Long, Integer> rates = new ConcurrentHashMap<>();
+
+    /**
+     * 本节点有人排队的券，由本节点参与放行
+     */
+    private final Set<Long> activeRooms = ConcurrentHashMap.newKeySet();
+
+    private ThreadLocal<HMac> hmac;
+
+    private final ScheduledExecutorService admitExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    public SeckillWaitingRoom(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    @PostConstruct
+    private void init() {
+        //等候室是按券开启的可选功能，没有配置密钥时关闭，开启等候室的券创建失败，已开启的券拒绝下单
+        if (StrUtil.isBlank(secret)) {
+            log.warn("未配置 seckill.waiting-room.secret，等候室不可用");
+        } else if (secret.length() < MIN_SECRET_LENGTH) {
+            //配置了弱密钥，令牌容易被伪造，启动失败
+            throw new IllegalStateException("seckill.waiting-room.secret 少于" + MIN_SECRET_LENGTH
+                    + "个字符，请通过环境变量 SECKILL_WAITING_ROOM_SECRET 配置随机密钥");
+        } else {
+            byte[] key = secret.getBytes(StandardCharsets.UTF_8);
+            hmac = ThreadLocal.withInitial(() -> new HMac(HmacAlgorithm.HmacSHA256, key));
+        }
+        admitExecutor.scheduleAtFixedRate(() -> {
+            try {
+                admit();
+            } catch (Exception e) {
+                log.error("等候室放行异常！", e);
+            }
+        }, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        admitExecutor.shutdown();
+    }
+
+    /**
+     * 是否配置了令牌密钥，没有配置时不能开启等候室
+     */
+    public boolean isAvailable() {
+        return hmac != null;
+    }
+
+    /**
+     * 开启券的等候室
+     * @param rate 每秒放行的人数
+     */
+    public void saveConfig(Long voucherId, int rate) {
+        if (hmac == null) {
+            throw new IllegalStateException("未配置 seckill.waiting-room.secret，不能开启等候室");
+        }
+        stringRedisTemplate.opsForValue().set(confKey(voucherId), String.valueOf(rate));
+        rates.put(voucherId, rate);
+    }
+
+    public boolean isEnabled(Long voucherId) {
+        return rateOf(voucherId) > 0;
+    }
+
+    /**
+     * 进入等候室，已在队列中的用户保留原来的位置
+     */
+    public WaitingRoomDTO join(Long voucherId, Long userId) {
+        activeRooms.add(voucherId);
+        List<Long> result = stringRedisTemplate.execute(
+                JOIN_SCRIPT,
+                Arrays.asList(queueKey(voucherId), seqKey(voucherId), admittedKey(voucherId)),
+                userId.toString()
+        );
+        return toDTO(voucherId, userId, result.get(0), result.get(1));
+    }
+
+    /**
+     * 查询排队位置，不在队列中返回null
+     */
+    public WaitingRoomDTO position(Long voucherId, Long userId) {
+        Double seq = stringRedisTemplate.opsForZSet().score(queueKey(voucherId), userId.toString());
+        if (seq == null) {
+            return null;
+        }
+        String admitted = stringRedisTemplate.opsForValue().get(admittedKey(voucherId));
+        return toDTO(voucherId, userId, seq.longValue(), admitted == null ? 0 : Long.parseLong(admitted));
+    }
+
+    /**
+     * 本地校验准入令牌：未过期且签名正确
+     */
+    public boolean verify(Long voucherId, Long userId, String token) {
+        if (token == null || hmac == null) {
+            return false;
+        }
+        int i = token.indexOf('.');
+        if (i <= 0) {
+            return false;
+        }
+        long expireAt;
+        try {
+            expireAt = Long.parseLong(token.substring(0, i));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        if (expireAt < System.currentTimeMillis()) {
+            return false;
+        }
+        byte[] expected = sign(voucherId, userId, expireAt).getBytes(StandardCharsets.UTF_8);
+        byte[] actual = token.substring(i + 1).getBytes(StandardCharsets.UTF_8);
+        return MessageDigest.isEqual(expected, actual);
+    }
+
+    /**
+     * 活动结束后删除等候室
+     */
+    public void remove(Long voucherId) {
+        stringRedisTemplate.unlink(Arrays.asList(confKey(voucherId), queueKey(voucherId), seqKey(voucherId),
+                admittedKey(voucherId), tickKey(voucherId)));
+        activeRooms.remove(voucherId);
+        rates.remove(voucherId);
+    }
+
+    private WaitingRoomDTO toDTO(Long voucherId, Long userId, long seq, long admitted) {
+        WaitingRoomDTO dto = new WaitingRoomDTO();
+        if (seq > admitted) {
+            dto.setPosition(seq - admitted);
+            return dto;
+        }
+        long expireAt = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(tokenTtlSeconds);
+        dto.setPosition(0L);
+        dto.setExpireAt(expireAt);
+        dto.setToken(expireAt + "." + sign(voucherId, userId, expireAt));
+        return dto;
+    }
+
+    private String sign(Long voucherId, Long userId, long expireAt) {
+        if (hmac == null) {
+            throw new IllegalStateException("未配置 seckill.waiting-room.secret，等候室不可用");
+        }
+        return hmac.get().digestHex(voucherId + ":" + userId + ":" + expireAt);
+    }
+
+    private void admit() {
+        for (Long voucherId : activeRooms) {
+            int rate = rateOf(voucherId);
+            long count = Math.max(1, rate * tickMillis / 1000);
+            stringRedisTemplate.execute(
+                    ADMIT_SCRIPT,
+                    Arrays.asList(admittedKey(voucherId), tickKey(voucherId), seqKey(voucherId)),
+                    String.valueOf(count), String.valueOf(tickMillis)
+            );
+        }
+    }
+
+    private int rateOf(Long voucherId) {
+        return rates.computeIfAbsent(voucherId, id -> {
+            String rate = stringRedisTemplate.opsForValue().get(confKey(id));
+            return rate == null ? 0 : Integer.parseInt(rate);
+        });
+    }
+
+    // 同一张券的key带有相同的hash tag，脚本可以在redis集群上执行
+    private static String confKey(Long voucherId) {
+        return SECKILL_ROOM_KEY + "{" + voucherId + "}:conf";
+    }
+
+    private static String queueKey(Long voucherId) {
+        return SECKILL_ROOM_KEY + "{" + voucherId + "}:queue";
+    }
+
+    private static String seqKey(Long voucherId) {
+        return SECKILL_ROOM_KEY + "{" + voucherId + "}:seq";
+    }
+
+    private static String admittedKey(Long voucherId) {
+        return SECKILL_ROOM_KEY + "{" + voucherId + "}:admitted";
+    }
+
+    private static String tickKey(Long voucherId) {
+        return SECKILL_ROOM_KEY + "{" + voucherId + "}:tick";
+    }
+}
@@ -0,0 +1,31 @@
+-- 秒杀相关的表结构变更，需要手动在数据库中执行
+
+-- 一人一单由唯一索引保证，订单写入使用 INSERT IGNORE，不再先查询再写入
+ALTER TABLE tb_voucher_order ADD UNIQUE KEY uk_voucher_user (voucher_id, user_id);
+
+-- 订单归档：已核销、已取消、已退款的订单在秒杀结束后移到按年份划分的冷表 tb_voucher_order_archive_{yyyy}，
+-- 冷表由归档任务按需创建（CREATE TABLE ... LIKE tb_voucher_order），热表只保留进行中的订单
+ALTER TABLE tb_voucher_order ADD KEY idx_status_update (status, update_time);
+
+-- 用户订单列表按(user_id, id)做keyset分页
+ALTER TABLE tb_voucher_order ADD KEY idx_user_id (user_id, id);
+
+-- 放弃的订单：转入死信队列或处理失败、不会再落库的订单，预写日志对账时跳过；死信重新投递时删除
+CREATE TABLE IF NOT EXISTS tb_voucher_order_abandoned (
+  `id` bigint NOT NULL COMMENT '订单id',
+  `voucher_id` bigint UNSIGNED NOT NULL COMMENT '购买的代金券id',
+  `user_id` bigint UNSIGNED NOT NULL COMMENT '下单的用户id',
+  `reason` varchar(255) NOT NULL DEFAULT '' COMMENT '放弃的原因',
+  `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
+  PRIMARY KEY (`id`)
+) ENGINE = InnoDB CHARACTER SET = utf8mb4;
+
+-- 已取消的订单不占一人一单：active_flag在status=4时为NULL，唯一索引中NULL互不冲突，用户重新下单插入新行
+ALTER TABLE tb_voucher_order ADD COLUMN active_flag TINYINT GENERATED ALWAYS AS (IF(`status` = 4, NULL, 1)) VIRTUAL;
+ALTER TABLE tb_voucher_order DROP KEY uk_voucher_user, ADD UNIQUE KEY uk_voucher_user (voucher_id, user_id, active_flag);
+
+-- 秒杀券的分片数和租用配置保存在数据库，预热时写入redis，存储被清空后按原来的配置恢复
+ALTER TABLE tb_seckill_voucher
+    ADD COLUMN stock_shards INT NOT NULL DEFAULT 1 COMMENT '库存分片数，1表示不分片',
+    ADD COLUMN stock_lease_chunk INT NOT NULL DEFAULT 0 COMMENT '每次租用的库存数量，0表示不租用',
+    ADD COLUMN stock_lease_partitions INT NOT NULL DEFAULT 0 COMMENT '租用模式下一人一单的分区数';
@@ -11,10 +11,32 @@ local orderId = ARGV[3]
 local stockKey = 'seckill:stock:' .. voucherId
 -- 2.2.订单key
 local orderKey = 'seckill:order:' .. voucherId
+-- 2.3.秒杀时间窗口key
+local windowKey = 'seckill:window:' .. voucherId
 
 -- 3.脚本业务
+-- 3.0.判断秒杀时间 hmget windowKey begin end，时间取redis服务器时间，各节点时钟不一致也不影响
+local window = redis.call('hmget', windowKey, 'begin', 'end')
+if(not window[1]) then
+    -- 未预热或已清理，返回5
+    return 5
+end
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+if(now < tonumber(window[1])) then
+    -- 未开始，返回3
+    return 3
+end
+if(now > tonumber(window[2])) then
+    -- 已结束，返回4
+    return 4
+end
 -- 3.1.判断库存是否充足 get stockKey
-if(tonumber(redis.call('get', stockKey)) <= 0) then
+local stock = tonumber(redis.call('get', stockKey))
+if(stock == nil) then
+    return 5
+end
+if(stock <= 0) then
     -- 3.2.库存不足，返回1
     return 1
 end
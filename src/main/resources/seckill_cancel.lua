@@ -0,0 +1,17 @@
+-- 取消超时未支付的订单，归还redis库存
+-- 1.参数列表
+-- 1.1.库存key
+local stockKey = KEYS[1]
+-- 1.2.订单key
+local orderKey = KEYS[2]
+-- 1.3.用户id
+local userId = ARGV[1]
+
+-- 2.脚本业务
+-- 2.1.移除用户的下单记录 SREM orderKey userId，不在集合中说明已经归还过（或不在这个分片）
+if(redis.call('srem', orderKey, userId) == 0) then
+    return 0
+end
+-- 2.2.归还库存 incrby stockKey 1
+redis.call('incrby', stockKey, 1)
+return 1
@@ -0,0 +1,36 @@
+-- 节点租用库存脚本，从总库存中一次扣出一批，由节点在本地售卖
+-- 1.参数列表
+-- 1.1.库存key
+local stockKey = KEYS[1]
+-- 1.2.秒杀时间窗口key
+local windowKey = KEYS[2]
+-- 1.3.租用数量
+local chunk = tonumber(ARGV[1])
+
+-- 2.脚本业务
+-- 2.1.判断秒杀时间，返回 {状态或租到的数量, 结束时间}
+local window = redis.call('hmget', windowKey, 'begin', 'end')
+if(not window[1]) then
+    -- 未预热或已清理，返回-5
+    return {-5, 0}
+end
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+if(now < tonumber(window[1])) then
+    -- 未开始，返回-3
+    return {-3, tonumber(window[2])}
+end
+if(now > tonumber(window[2])) then
+    -- 已结束，返回-4
+    return {-4, tonumber(window[2])}
+end
+-- 2.2.扣出 min(库存, 租用数量) incrby stockKey -take
+local stock = tonumber(redis.call('get', stockKey))
+if(stock == nil) then
+    return {-5, 0}
+end
+local take = math.min(stock, chunk)
+if(take > 0) then
+    redis.call('incrby', stockKey, -take)
+end
+return {take, tonumber(window[2])}
@@ -0,0 +1,5 @@
+-- 归还节点未卖完的库存，活动已清理（库存key不存在）时不再归还，避免重新创建key
+if(redis.call('exists', KEYS[1]) == 0) then
+    return -1
+end
+return redis.call('incrby', KEYS[1], ARGV[1])
@@ -0,0 +1,25 @@
+-- 用户请求的滑动窗口限流
+-- 1.参数列表
+-- 1.1.限流key，zset，score为请求时间
+local key = KEYS[1]
+-- 1.2.当前时间（毫秒）
+local now = tonumber(ARGV[1])
+-- 1.3.窗口长度（毫秒）
+local window = tonumber(ARGV[2])
+-- 1.4.窗口内最多的请求数
+local limit = tonumber(ARGV[3])
+-- 1.5.本次请求的唯一标识
+local member = ARGV[4]
+
+-- 2.脚本业务
+-- 2.1.移除窗口外的请求 ZREMRANGEBYSCORE key 0 now-window
+redis.call('zremrangebyscore', key, 0, now - window)
+-- 2.2.判断窗口内的请求数 ZCARD key
+if(redis.call('zcard', key) >= limit) then
+    -- 超过限制，返回0
+    return 0
+end
+-- 2.3.记录本次请求 ZADD key now member
+redis.call('zadd', key, now, member)
+redis.call('pexpire', key, window)
+return 1
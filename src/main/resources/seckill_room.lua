@@ -0,0 +1,22 @@
+-- 进入等候室，重复进入保留原来的位置
+-- 1.参数列表
+-- 1.1.排队队列key
+local queueKey = KEYS[1]
+-- 1.2.排队序号key
+local seqKey = KEYS[2]
+-- 1.3.已放行序号key
+local admittedKey = KEYS[3]
+-- 1.4.用户id
+local userId = ARGV[1]
+
+-- 2.脚本业务
+-- 2.1.已经在队列中 ZSCORE queueKey userId
+local seq = redis.call('zscore', queueKey, userId)
+if(not seq) then
+    -- 2.2.新用户排到队尾 INCR seqKey，ZADD queueKey seq userId
+    seq = redis.call('incr', seqKey)
+    redis.call('zadd', queueKey, seq, userId)
+end
+-- 2.3.返回 {排队序号, 已放行到的序号}
+local admitted = redis.call('get', admittedKey)
+return {tonumber(seq), tonumber(admitted or '0')}
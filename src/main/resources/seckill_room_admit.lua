@@ -0,0 +1,26 @@
+-- 按速率放行等候室中的用户，每个放行周期只有一个节点执行成功
+-- 1.参数列表
+-- 1.1.已放行序号key
+local admittedKey = KEYS[1]
+-- 1.2.放行周期锁key
+local tickKey = KEYS[2]
+-- 1.3.排队序号key
+local seqKey = KEYS[3]
+-- 1.4.本周期放行人数
+local count = tonumber(ARGV[1])
+-- 1.5.放行周期（毫秒）
+local tickMillis = ARGV[2]
+
+-- 2.脚本业务
+-- 2.1.本周期已经有节点放行过 SET tickKey 1 NX PX tickMillis
+if(not redis.call('set', tickKey, '1', 'NX', 'PX', tickMillis)) then
+    return -1
+end
+-- 2.2.已放行序号后移count个，但不超过队尾，避免空闲时积累的名额被后来的人一次用完
+local admitted = tonumber(redis.call('get', admittedKey) or '0')
+local tail = tonumber(redis.call('get', seqKey) or '0')
+local next = math.min(admitted + count, tail)
+if(next > admitted) then
+    redis.call('set', admittedKey, next)
+end
+return next
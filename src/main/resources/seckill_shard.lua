@@ -0,0 +1,54 @@
+-- 分片库存的下单脚本，一次只操作一个分片，所有key带有相同的hash tag，可以在redis集群上执行
+-- 一人一单只记录在用户的主分片（按userId路由），主分片售罄时占住一人一单，再由调用方到其它分片只扣库存
+-- 1.参数列表
+-- 1.1.分片库存key
+local stockKey = KEYS[1]
+-- 1.2.分片订单key
+local orderKey = KEYS[2]
+-- 1.3.分片时间窗口key
+local windowKey = KEYS[3]
+-- 1.4.用户id
+local userId = ARGV[1]
+-- 1.5.是否只扣库存，1：探测其它分片，不判断一人一单
+local stockOnly = ARGV[2] == '1'
+
+-- 2.脚本业务
+-- 2.0.判断秒杀时间 hmget windowKey begin end，每个分片保存一份，与分片在同一个slot
+local window = redis.call('hmget', windowKey, 'begin', 'end')
+if(not window[1]) then
+    -- 未预热或已清理，返回5
+    return 5
+end
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+if(now < tonumber(window[1])) then
+    -- 未开始，返回3
+    return 3
+end
+if(now > tonumber(window[2])) then
+    -- 已结束，返回4
+    return 4
+end
+-- 2.1.在主分片判断用户是否下过单 SISMEMBER orderKey userId
+--     先判断重复再判断库存，用户在其它分片买到的也记录在主分片
+if((not stockOnly) and redis.call('sismember', orderKey, userId) == 1) then
+    -- 存在，说明是重复下单，返回2
+    return 2
+end
+-- 2.2.判断分片库存是否充足 get stockKey
+local stock = tonumber(redis.call('get', stockKey))
+if(stock == nil or stock <= 0) then
+    if(not stockOnly) then
+        -- 主分片售罄，先占住一人一单，调用方探测其它分片，全部售罄时移除
+        redis.call('sadd', orderKey, userId)
+    end
+    -- 分片库存不足，返回1，由调用方探测下一个分片
+    return 1
+end
+-- 2.3.扣库存 incrby stockKey -1
+redis.call('incrby', stockKey, -1)
+-- 2.4.下单（保存用户）sadd orderKey userId，只扣库存时一人一单已经记录在主分片
+if(not stockOnly) then
+    redis.call('sadd', orderKey, userId)
+end
+return 0
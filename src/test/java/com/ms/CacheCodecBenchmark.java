@@ -0,0 +1,116 @@
+package com.ms;
+
+import com.ms.entity.Shop;
+import com.ms.entity.ShopType;
+import com.ms.utils.BinaryCacheCodec;
+import com.ms.utils.CacheCodec;
+import com.ms.utils.CacheCodecRedisSerializer;
+import com.ms.utils.JsonCacheCodec;
+import com.ms.utils.RedisData;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.serializer.GenericJackson2JsonRedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * 缓存编码的基准测试，不需要redis和mysql
+ * 对比Hutool JSON（CacheClient原来的编码）、GenericJackson2JsonRedisSerializer（Spring Cache原来的编码，
+ * 不支持LocalDateTime，只用于List<ShopType>）、二进制编码和二进制+压缩，输出每次编码/解码的耗时和写入redis的字节数。
+ * 迭代次数通过系统属性调整，例如 -Dcache.bench.iterations=200000
+ */
+class CacheCodecBenchmark {
+
+    private static final int ITERATIONS = Integer.getInteger("cache.bench.iterations", 50000);
+
+    private final CacheCodec json = new JsonCacheCodec();
+    private final CacheCodec binary = new BinaryCacheCodec(0, "com.ms.");
+    private final CacheCodec compressed = new BinaryCacheCodec(256, "com.ms.");
+    private final GenericJackson2JsonRedisSerializer jackson = new GenericJackson2JsonRedisSerializer();
+
+    @Test
+    void benchShop() {
+        Shop shop = shop(1L);
+        System.out.println("Shop");
+        bench("hutool json", json::encode, b -> json.decode(b, Shop.class), shop);
+        bench("binary", binary::encode, b -> binary.decode(b, Shop.class), shop);
+        bench("binary+deflate", compressed::encode, b -> compressed.decode(b, Shop.class), shop);
+        Assertions.assertEquals(shop, binary.decode(binary.encode(shop), Shop.class));
+    }
+
+    @Test
+    void benchLogicalExpireShop() {
+        RedisData data = new RedisData();
+        data.setData(shop(1L));
+        data.setExpireTime(LocalDateTime.now().plusMinutes(30));
+        System.out.println("RedisData<Shop>");
+        bench("hutool json", json::encode, b -> json.decode(b, RedisData.class), data);
+        bench("binary", binary::encode, b -> binary.decode(b, RedisData.class), data);
+        Assertions.assertEquals(data.getData(), binary.decode(binary.encode(data), RedisData.class).getData());
+    }
+
+    @Test
+    void benchShopTypeList() {
+        List<ShopType> types = new ArrayList<>();
+        for (int i = 1; i <= 10; i++) {
+            types.add(new ShopType().setId((long) i).setName("美食" + i).setIcon("/types/ms" + i + ".png").setSort(i)
+                    .setCreateTime(LocalDateTime.of(2021, 12, 22, 20, 17, 47))
+                    .setUpdateTime(LocalDateTime.of(2021, 12, 23, 11, 24, 31)));
+        }
+        System.out.println("List<ShopType>");
+        bench("hutool json", json::encode, b -> json.decode(b, Object.class), types);
+        bench("jackson (spring cache)", jackson::serialize, jackson::deserialize, types);
+        bench("binary", binary::encode, b -> binary.decode(b, Object.class), types);
+        bench("binary+deflate", compressed::encode, b -> compressed.decode(b, Object.class), types);
+        Assertions.assertEquals(types, compressed.decode(compressed.encode(types), Object.class));
+    }
+
+    @Test
+    void readsLegacyJson() {
+        Shop shop = shop(2L);
+        Assertions.assertEquals(shop.getName(), binary.decode(json.encode(shop), Shop.class).getName());
+    }
+
+    @Test
+    void rejectsLegacySpringCacheValue() {
+        CacheCodecRedisSerializer serializer = new CacheCodecRedisSerializer(binary);
+        List<ShopType> types = new ArrayList<>();
+        types.add(new ShopType().setId(1L).setName("美食"));
+        Assertions.assertThrows(SerializationException.class, () -> serializer.deserialize(jackson.serialize(types)));
+        Assertions.assertEquals(types, serializer.deserialize(serializer.serialize(types)));
+    }
+
+    private static Shop shop(Long id) {
+        return new Shop().setId(id).setName("103茶餐厅").setTypeId(1L)
+                .setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg,https://qcloud.dpfile.com/pc/IOf6VX3qaBgFXFVgp75w-KKJmWZjFc8GXDU8g9bQC6YGCpAmG00QbfT4vCCBj7njuzFvxlbkWx5uwqY2qcjixFEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vmIU_8ZGOT1OjpJmLxG6urQ.jpg")
+                .setArea("大关").setAddress("金华路锦昌文华苑29号").setX(120.149192).setY(30.316078)
+                .setAvgPrice(80L).setSold(4215).setComments(3035).setScore(37).setOpenHours("10:00-22:00")
+                .setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39))
+                .setUpdateTime(LocalDateTime.of(2022, 1, 13, 17, 32, 19));
+    }
+
+    private static <T> void bench(String name, Function<T, byte[]> encode, Function<byte[], Object> decode, T value) {
+        byte[] bytes = encode.apply(value);
+        //预热
+        for (int i = 0; i < ITERATIONS; i++) {
+            decode.apply(encode.apply(value));
+        }
+        long t0 = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            bytes = encode.apply(value);
+        }
+        long t1 = System.nanoTime();
+        Object sink = null;
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink = decode.apply(bytes);
+        }
+        long t2 = System.nanoTime();
+        Assertions.assertNotNull(sink);
+        System.out.printf("  %-24s %6d bytes  encode %8.0f ns/op  decode %8.0f ns/op%n", name, bytes.length,
+                (double) (t1 - t0) / ITERATIONS, (double) (t2 - t1) / ITERATIONS);
+    }
+}
@@ -0,0 +1,159 @@
+package com.ms;
+
+import com.ms.entity.VoucherOrder;
+import com.ms.service.SeckillEngine;
+import com.ms.service.impl.LocalSeckillEngine;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * 进程内秒杀引擎的测试，不需要redis和mysql
+ * 直接创建引擎，覆盖分段库存、一人一单、售罄、队列满时回滚和归还库存。
+ */
+class LocalSeckillEngineTest {
+
+    private static final Long VOUCHER_ID = 1L;
+
+    private LocalSeckillEngine engine;
+
+    @AfterEach
+    void tearDown() {
+        if (engine != null) {
+            ReflectionTestUtils.invokeMethod(engine, "destroy");
+        }
+    }
+
+    @Test
+    void reserveUntilSoldOut() throws Exception {
+        Set<Long> persisted = ConcurrentHashMap.newKeySet();
+        engine = engine(4, 1024, orders -> orders.forEach(o -> persisted.add(o.getUserId())));
+        engine.load(VOUCHER_ID, 10, 0, Long.MAX_VALUE);
+
+        //100个用户并发抢10个库存，库存分在4个分段
+        ExecutorService es = Executors.newFixedThreadPool(8);
+        AtomicInteger success = new AtomicInteger();
+        AtomicInteger soldOut = new AtomicInteger();
+        Future<?>[] futures = new Future<?>[100];
+        for (int i = 0; i < futures.length; i++) {
+            long userId = 1000 + i;
+            futures[i] = es.submit(() -> {
+                int r = engine.reserve(VOUCHER_ID, userId, userId);
+                if (r == SeckillEngine.SUCCESS) {
+                    success.incrementAndGet();
+                } else if (r == SeckillEngine.SOLD_OUT) {
+                    soldOut.incrementAndGet();
+                }
+            });
+        }
+        for (Future<?> f : futures) {
+            f.get();
+        }
+        es.shutdown();
+        Assertions.assertEquals(10, success.get());
+        Assertions.assertEquals(90, soldOut.get());
+        Map<String, String> stats = engine.unload(VOUCHER_ID);
+        Assertions.assertEquals("10", stats.get("sold"));
+        Assertions.assertEquals("0", stats.get("remainingStock"));
+        Assertions.assertEquals("4", stats.get("shards"));
+        waitUntil(() -> persisted.size() == 10);
+    }
+
+    @Test
+    void duplicateAndRelease() {
+        engine = engine(4, 1024, orders -> { });
+        engine.load(VOUCHER_ID, 1, 0, Long.MAX_VALUE);
+
+        Assertions.assertEquals(SeckillEngine.SUCCESS, engine.reserve(VOUCHER_ID, 1L, 1L));
+        Assertions.assertEquals(SeckillEngine.DUPLICATE, engine.reserve(VOUCHER_ID, 1L, 2L));
+        //售罄的用户没有占用一人一单的名额
+        Assertions.assertEquals(SeckillEngine.SOLD_OUT, engine.reserve(VOUCHER_ID, 2L, 3L));
+        Assertions.assertEquals(SeckillEngine.SOLD_OUT, engine.reserve(VOUCHER_ID, 2L, 4L));
+
+        //取消订单归还库存，重复归还无效
+        Assertions.assertTrue(engine.release(VOUCHER_ID, 1L));
+        Assertions.assertFalse(engine.release(VOUCHER_ID, 1L));
+        Assertions.assertEquals(SeckillEngine.SUCCESS, engine.reserve(VOUCHER_ID, 2L, 5L));
+        Assertions.assertEquals(SeckillEngine.SOLD_OUT, engine.reserve(VOUCHER_ID, 1L, 6L));
+    }
+
+    @Test
+    void rollbackWhenQueueFull() throws Exception {
+        CountDownLatch taken = new CountDownLatch(1);
+        CountDownLatch blocked = new CountDownLatch(1);
+        Set<Long> persisted = ConcurrentHashMap.newKeySet();
+        //队列容量2，消费者每次取1个订单后阻塞
+        engine = engine(1, 2, orders -> {
+            taken.countDown();
+            await(blocked);
+            orders.forEach(o -> persisted.add(o.getUserId()));
+        });
+        engine.load(VOUCHER_ID, 10, 0, Long.MAX_VALUE);
+
+        Assertions.assertEquals(SeckillEngine.SUCCESS, engine.reserve(VOUCHER_ID, 1L, 1L));
+        Assertions.assertTrue(taken.await(5, TimeUnit.SECONDS));
+        Assertions.assertEquals(SeckillEngine.SUCCESS, engine.reserve(VOUCHER_ID, 2L, 2L));
+        Assertions.assertEquals(SeckillEngine.SUCCESS, engine.reserve(VOUCHER_ID, 3L, 3L));
+        Assertions.assertEquals(SeckillEngine.BUSY, engine.reserve(VOUCHER_ID, 4L, 4L));
+        //回滚了库存和一人一单
+        Assertions.assertEquals(SeckillEngine.BUSY, engine.reserve(VOUCHER_ID, 4L, 5L));
+
+        blocked.countDown();
+        waitUntil(() -> persisted.size() == 3);
+        Assertions.assertEquals(SeckillEngine.SUCCESS, engine.reserve(VOUCHER_ID, 4L, 6L));
+        waitUntil(() -> persisted.size() == 4);
+        Assertions.assertEquals("6", engine.unload(VOUCHER_ID).get("remainingStock"));
+    }
+
+    @Test
+    void timeWindow() {
+        engine = engine(2, 16, orders -> { });
+        long now = System.currentTimeMillis();
+        Assertions.assertEquals(SeckillEngine.NOT_LOADED, engine.reserve(VOUCHER_ID, 1L, 1L));
+        engine.load(VOUCHER_ID, 1, now + 60000, Long.MAX_VALUE);
+        Assertions.assertEquals(SeckillEngine.NOT_STARTED, engine.reserve(VOUCHER_ID, 1L, 1L));
+        engine.load(2L, 1, 0, now - 1);
+        Assertions.assertEquals(SeckillEngine.ENDED, engine.reserve(2L, 1L, 2L));
+    }
+
+    private static LocalSeckillEngine engine(int stripes, int queueCapacity, Consumer<List<VoucherOrder>> handler) {
+        LocalSeckillEngine engine = new LocalSeckillEngine();
+        ReflectionTestUtils.setField(engine, "stripeConf", stripes);
+        ReflectionTestUtils.setField(engine, "queueCapacity", queueCapacity);
+        ReflectionTestUtils.setField(engine, "consumerCount", 1);
+        ReflectionTestUtils.setField(engine, "batchSize", 1);
+        ReflectionTestUtils.setField(engine, "maxAttempts", 1L);
+        engine.consume(handler);
+        return engine;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            Assertions.assertTrue(System.currentTimeMillis() < deadline, "等待超时");
+            Thread.sleep(5);
+        }
+    }
+}
@@ -4,6 +4,7 @@ import com.ms.entity.Shop;
 import com.ms.service.impl.ShopServiceImpl;
 import com.ms.utils.CacheClient;
 import com.ms.utils.RedisIdWorker;
+import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.data.geo.Point;
@@ -11,12 +12,15 @@ import org.springframework.data.redis.connection.RedisGeoCommands;
 import org.springframework.data.redis.core.StringRedisTemplate;
 
 import javax.annotation.Resource;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 import static com.ms.utils.RedisConstants.SHOP_GEO_KEY;
@@ -58,6 +62,40 @@ class MassSelectionApplicationTests {
         System.out.println("time = " + (end - begin));
     }
 
+    @Test
+    void testIdWorkerBenchmark() throws InterruptedException {
+        // 与testIdWorker相同的场景：300个任务，每个任务生成100个id
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        // 1.每次INCR一次的旧实现
+        long legacy = runIdTasks(() -> {
+            LocalDateTime now = LocalDateTime.now();
+            long timeStamp = now.toEpochSecond(ZoneOffset.UTC) - 1640995200L;
+            String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
+            long count = stringRedisTemplate.opsForValue().increment("icr:bench:" + date);
+            return timeStamp << 32 | count;
+        }, ConcurrentHashMap.newKeySet());
+        // 2.号段分配
+        long segment = runIdTasks(() -> redisIdWorker.nextId("order"), ids);
+        System.out.println("legacy time = " + legacy + "ms, segment time = " + segment + "ms");
+        Assertions.assertEquals(300 * 100, ids.size());
+    }
+
+    private long runIdTasks(Supplier<Long> idSupplier, Set<Long> ids) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(300);
+        Runnable task = () -> {
+            for (int i = 0; i < 100; i++) {
+                ids.add(idSupplier.get());
+            }
+            latch.countDown();
+        };
+        long begin = System.currentTimeMillis();
+        for (int i = 0; i < 300; i++) {
+            es.submit(task);
+        }
+        latch.await();
+        return System.currentTimeMillis() - begin;
+    }
+
     @Test
     void testSaveShop() throws InterruptedException {
 //        Shop shop = shopService.getById(1L);
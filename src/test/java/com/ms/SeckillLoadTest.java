@@ -0,0 +1,199 @@
+package com.ms;
+
+import com.ms.dto.Result;
+import com.ms.dto.SeckillLimitDTO;
+import com.ms.dto.UserDTO;
+import com.ms.entity.SeckillVoucher;
+import com.ms.entity.Voucher;
+import com.ms.entity.VoucherOrder;
+import com.ms.service.ISeckillVoucherService;
+import com.ms.service.IVoucherOrderService;
+import com.ms.service.IVoucherService;
+import com.ms.utils.SeckillOrderResults;
+import com.ms.utils.SeckillStockShards;
+import com.ms.utils.UserHolder;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static com.ms.utils.RedisConstants.SECKILL_STOCK_KEY;
+
+/**
+ * 秒杀压测与超卖校验，需要本地的redis和mysql
+ * 每次运行新建一张秒杀券，模拟大量用户并发抢购（每个用户重复请求多次），统计吞吐量、请求延迟分位数，
+ * 以及从下单成功到消费者落库的耗时；结束后核对redis库存、tb_seckill_voucher.stock和tb_voucher_order，
+ * 确认没有超卖、没有同一用户的重复订单。
+ * 参数通过系统属性调整，例如 -Dseckill.load.users=20000 -Dseckill.load.stock=500 -Dseckill.load.shards=4
+ */
+@Slf4j
+@SpringBootTest
+class SeckillLoadTest {
+
+    private static final int STOCK = Integer.getInteger("seckill.load.stock", 1000);
+    private static final int USERS = Integer.getInteger("seckill.load.users", 5000);
+    private static final int REQUESTS_PER_USER = Integer.getInteger("seckill.load.requests-per-user", 2);
+    private static final int SHARDS = Integer.getInteger("seckill.load.shards", 1);
+    private static final int THREADS = Integer.getInteger("seckill.load.threads", 200);
+    private static final long PERSIST_TIMEOUT_SECONDS = Long.getLong("seckill.load.persist-timeout-seconds", 60L);
+
+    @Resource
+    private IVoucherService voucherService;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private SeckillOrderResults seckillOrderResults;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Test
+    void testSeckillLoad() throws InterruptedException {
+        Long voucherId = createVoucher();
+        // 关闭限流，压测的是下单链路本身
+        SeckillLimitDTO limit = new SeckillLimitDTO();
+        limit.setLocalQps(0);
+        limit.setUserLimit(0);
+        voucherService.updateSeckillLimit(voucherId, limit);
+
+        //1.打乱请求顺序，同一用户的多次请求分散到不同线程
+        List<Long> requests = new ArrayList<>(USERS * REQUESTS_PER_USER);
+        for (int r = 0; r < REQUESTS_PER_USER; r++) {
+            for (long u = 1; u <= USERS; u++) {
+                requests.add(u);
+            }
+        }
+        Collections.shuffle(requests);
+
+        long[] latencies = new long[requests.size()];
+        AtomicInteger index = new AtomicInteger();
+        Map<Long, Long> acceptedUsers = new ConcurrentHashMap<>();
+        Map<String, AtomicInteger> failures = new ConcurrentHashMap<>();
+        Queue<Long> persistLatencies = new ConcurrentLinkedQueue<>();
+        Map<String, AtomicInteger> persistStates = new ConcurrentHashMap<>();
+        CountDownLatch persisted = new CountDownLatch(Math.min(STOCK, USERS));
+
+        //2.并发下单
+        ExecutorService es = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch latch = new CountDownLatch(THREADS);
+        long begin = System.nanoTime();
+        for (int t = 0; t < THREADS; t++) {
+            es.submit(() -> {
+                try {
+                    int i;
+                    while ((i = index.getAndIncrement()) < latencies.length) {
+                        Long userId = requests.get(i);
+                        UserDTO user = new UserDTO();
+                        user.setId(userId);
+                        UserHolder.saveUser(user);
+                        long start = System.nanoTime();
+                        Result result = voucherOrderService.seckillVoucher(voucherId);
+                        long accepted = System.nanoTime();
+                        latencies[i] = accepted - start;
+                        if (!Boolean.TRUE.equals(result.getSuccess())) {
+                            failures.computeIfAbsent(result.getErrorMsg(), k -> new AtomicInteger()).incrementAndGet();
+                            continue;
+                        }
+                        acceptedUsers.put(userId, (Long) result.getData());
+                        //3.等待消费者落库，记录从下单成功到落库的耗时
+                        DeferredResult<Result> deferred = seckillOrderResults.await((Long) result.getData(), userId, PERSIST_TIMEOUT_SECONDS);
+                        deferred.setResultHandler(r -> {
+                            persistLatencies.add(System.nanoTime() - accepted);
+                            persistStates.computeIfAbsent(String.valueOf(((Result) r).getData()), k -> new AtomicInteger())
+                                    .incrementAndGet();
+                            persisted.countDown();
+                        });
+                    }
+                } finally {
+                    UserHolder.removeUser();
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        long elapsed = System.nanoTime() - begin;
+        es.shutdown();
+        boolean allPersisted = persisted.await(PERSIST_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        //4.统计
+        Arrays.sort(latencies);
+        long[] persist = persistLatencies.stream().mapToLong(Long::longValue).sorted().toArray();
+        log.info("秒杀压测：券{}，库存{}，分片{}，用户{}，请求{}，线程{}", voucherId, STOCK, SHARDS, USERS, latencies.length, THREADS);
+        log.info("吞吐量 {} req/s，耗时 {} ms", String.format("%.0f", latencies.length * 1e9 / elapsed), elapsed / 1_000_000);
+        log.info("请求延迟 p50={}us p99={}us p999={}us max={}us",
+                percentile(latencies, 0.5) / 1000, percentile(latencies, 0.99) / 1000,
+                percentile(latencies, 0.999) / 1000, latencies[latencies.length - 1] / 1000);
+        log.info("落库耗时 p50={}ms p99={}ms p999={}ms，结果{}，全部落库：{}",
+                percentile(persist, 0.5) / 1_000_000, percentile(persist, 0.99) / 1_000_000,
+                percentile(persist, 0.999) / 1_000_000, persistStates, allPersisted);
+        log.info("下单成功{}，失败{}", acceptedUsers.size(), failures);
+
+        //5.核对库存和订单
+        verify(voucherId, acceptedUsers);
+        Assertions.assertTrue(allPersisted, "超时仍有订单未落库");
+    }
+
+    private Long createVoucher() {
+        Voucher voucher = new Voucher();
+        voucher.setShopId(1L);
+        voucher.setTitle("压测秒杀券");
+        voucher.setPayValue(100L);
+        voucher.setActualValue(100L);
+        voucher.setType(1);
+        voucher.setStock(STOCK);
+        voucher.setStockShards(SHARDS);
+        voucher.setBeginTime(LocalDateTime.now().minusMinutes(1));
+        voucher.setEndTime(LocalDateTime.now().plusHours(1));
+        voucherService.addSeckillVoucher(voucher);
+        return voucher.getId();
+    }
+
+    private void verify(Long voucherId, Map<Long, Long> acceptedUsers) {
+        //redis库存，多个分片时求和
+        long redisStock = 0;
+        if (SHARDS > 1) {
+            for (int i = 0; i < SHARDS; i++) {
+                redisStock += Long.parseLong(stringRedisTemplate.opsForValue().get(SeckillStockShards.stockKey(voucherId, i)));
+            }
+        } else {
+            redisStock = Long.parseLong(stringRedisTemplate.opsForValue().get(SECKILL_STOCK_KEY + voucherId));
+        }
+        SeckillVoucher seckillVoucher = seckillVoucherService.getById(voucherId);
+        List<VoucherOrder> orders = voucherOrderService.query().eq("voucher_id", voucherId).list();
+        Map<Long, Long> ordersPerUser = orders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getUserId, Collectors.counting()));
+        log.info("redis库存{}，数据库库存{}，订单{}条", redisStock, seckillVoucher.getStock(), orders.size());
+
+        Assertions.assertTrue(redisStock >= 0, "redis库存为负");
+        Assertions.assertTrue(seckillVoucher.getStock() >= 0, "数据库库存为负");
+        Assertions.assertTrue(orders.size() <= STOCK, "超卖");
+        Assertions.assertEquals(orders.size(), ordersPerUser.size(), "同一用户存在重复订单");
+        Assertions.assertEquals(STOCK, redisStock + acceptedUsers.size(), "redis库存与下单成功数不一致");
+        Assertions.assertEquals(STOCK, seckillVoucher.getStock() + orders.size(), "数据库库存与订单数不一致");
+        Assertions.assertEquals(acceptedUsers.keySet(), ordersPerUser.keySet(), "下单成功的用户与订单不一致");
+        Assertions.assertEquals(new HashSet<>(acceptedUsers.values()),
+                orders.stream().map(VoucherOrder::getId).collect(Collectors.toSet()), "订单id不一致");
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int i = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(i, sorted.length - 1))];
+    }
+}